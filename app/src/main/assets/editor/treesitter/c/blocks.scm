@@ -0,0 +1,6 @@
+; Code blocks of tree-sitter-c, shown as guides and folded
+
+(compound_statement) @scope.marked
+(field_declaration_list) @scope.marked
+(enumerator_list) @scope.marked
+(initializer_list) @scope
@@ -0,0 +1,79 @@
+; Highlights of tree-sitter-c, the most specific patterns first
+
+(comment) @comment
+
+(escape_sequence) @string.escape
+
+[
+  (string_literal)
+  (system_lib_string)
+  (char_literal)
+] @string
+
+(number_literal) @number
+
+[
+  (true)
+  (false)
+] @boolean
+
+(null) @constant.builtin
+
+(function_declarator
+  declarator: (identifier) @function)
+(call_expression
+  function: (identifier) @function.call)
+(preproc_function_def
+  name: (identifier) @function)
+
+(primitive_type) @type.builtin
+
+[
+  (type_identifier)
+  (sized_type_specifier)
+] @type
+
+(field_identifier) @property
+
+((identifier) @constant
+  (#match? @constant "^[A-Z][A-Z\\d_]+$"))
+
+(statement_identifier) @label
+
+[
+  "#define"
+  "#elif"
+  "#else"
+  "#endif"
+  "#if"
+  "#ifdef"
+  "#ifndef"
+  "#include"
+  (preproc_directive)
+] @preproc
+
+"sizeof" @keyword.operator
+
+[
+  "break"
+  "case"
+  "const"
+  "continue"
+  "default"
+  "do"
+  "else"
+  "enum"
+  "extern"
+  "for"
+  "goto"
+  "if"
+  "inline"
+  "return"
+  "static"
+  "struct"
+  "switch"
+  "typedef"
+  "union"
+  "volatile"
+  "while"
+] @keyword
@@ -0,0 +1,7 @@
+; Code blocks of tree-sitter-cpp, shown as guides and folded
+
+(compound_statement) @scope.marked
+(field_declaration_list) @scope.marked
+(declaration_list) @scope.marked
+(enumerator_list) @scope.marked
+(initializer_list) @scope
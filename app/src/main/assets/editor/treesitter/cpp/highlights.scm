@@ -0,0 +1,118 @@
+; Highlights of tree-sitter-cpp, the most specific patterns first. The grammar extends the one of
+; C, so are the patterns of ../c/highlights.scm.
+
+(comment) @comment
+
+(escape_sequence) @string.escape
+
+[
+  (string_literal)
+  (raw_string_literal)
+  (system_lib_string)
+  (char_literal)
+] @string
+
+(number_literal) @number
+
+[
+  (true)
+  (false)
+] @boolean
+
+[
+  (null)
+  (nullptr)
+] @constant.builtin
+
+(this) @variable.builtin
+
+(function_declarator
+  declarator: (identifier) @function)
+(function_declarator
+  declarator: (field_identifier) @function)
+(function_declarator
+  declarator: (qualified_identifier
+    name: (identifier) @function))
+(call_expression
+  function: (identifier) @function.call)
+(call_expression
+  function: (field_expression
+    field: (field_identifier) @function.call))
+(call_expression
+  function: (qualified_identifier
+    name: (identifier) @function.call))
+(preproc_function_def
+  name: (identifier) @function)
+
+[
+  (primitive_type)
+  (auto)
+] @type.builtin
+
+[
+  (type_identifier)
+  (sized_type_specifier)
+  (namespace_identifier)
+] @type
+
+(field_identifier) @property
+
+((identifier) @constant
+  (#match? @constant "^[A-Z][A-Z\\d_]+$"))
+
+(statement_identifier) @label
+
+[
+  "#define"
+  "#elif"
+  "#else"
+  "#endif"
+  "#if"
+  "#ifdef"
+  "#ifndef"
+  "#include"
+  (preproc_directive)
+] @preproc
+
+[
+  "delete"
+  "new"
+  "sizeof"
+] @keyword.operator
+
+[
+  "break"
+  "case"
+  "catch"
+  "class"
+  "const"
+  "continue"
+  "default"
+  "do"
+  "else"
+  "enum"
+  "extern"
+  "for"
+  "friend"
+  "goto"
+  "if"
+  "inline"
+  "namespace"
+  "private"
+  "protected"
+  "public"
+  "return"
+  "static"
+  "struct"
+  "switch"
+  "template"
+  "throw"
+  "try"
+  "typedef"
+  "typename"
+  "union"
+  "using"
+  "virtual"
+  "volatile"
+  "while"
+] @keyword
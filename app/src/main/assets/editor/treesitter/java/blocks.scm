@@ -0,0 +1,9 @@
+; Code blocks of tree-sitter-java, shown as guides and folded
+
+(class_body) @scope.marked
+(interface_body) @scope.marked
+(enum_body) @scope.marked
+(constructor_body) @scope.marked
+(block) @scope.marked
+(switch_block) @scope.marked
+(array_initializer) @scope
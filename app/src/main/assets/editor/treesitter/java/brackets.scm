@@ -0,0 +1,13 @@
+; Bracket pairs of tree-sitter-java
+
+(block "{" @editor.brackets.open "}" @editor.brackets.close)
+(class_body "{" @editor.brackets.open "}" @editor.brackets.close)
+(interface_body "{" @editor.brackets.open "}" @editor.brackets.close)
+(enum_body "{" @editor.brackets.open "}" @editor.brackets.close)
+(constructor_body "{" @editor.brackets.open "}" @editor.brackets.close)
+(switch_block "{" @editor.brackets.open "}" @editor.brackets.close)
+(array_initializer "{" @editor.brackets.open "}" @editor.brackets.close)
+(formal_parameters "(" @editor.brackets.open ")" @editor.brackets.close)
+(argument_list "(" @editor.brackets.open ")" @editor.brackets.close)
+(parenthesized_expression "(" @editor.brackets.open ")" @editor.brackets.close)
+(array_access "[" @editor.brackets.open "]" @editor.brackets.close)
@@ -0,0 +1,103 @@
+; Highlights of tree-sitter-java, the most specific patterns first
+
+[
+  (line_comment)
+  (block_comment)
+] @comment
+
+(escape_sequence) @string.escape
+
+[
+  (string_literal)
+  (character_literal)
+] @string
+
+[
+  (decimal_integer_literal)
+  (hex_integer_literal)
+  (octal_integer_literal)
+  (binary_integer_literal)
+  (decimal_floating_point_literal)
+  (hex_floating_point_literal)
+] @number
+
+[
+  (true)
+  (false)
+] @boolean
+
+(null_literal) @constant.builtin
+
+[
+  (this)
+  (super)
+] @variable.builtin
+
+(annotation
+  name: (identifier) @attribute)
+(marker_annotation
+  name: (identifier) @attribute)
+
+(method_declaration
+  name: (identifier) @function)
+(constructor_declaration
+  name: (identifier) @function)
+(method_invocation
+  name: (identifier) @function.call)
+
+[
+  (void_type)
+  (integral_type)
+  (floating_point_type)
+  (boolean_type)
+] @type.builtin
+
+(type_identifier) @type
+
+(field_access
+  field: (identifier) @property)
+
+((identifier) @constant
+  (#match? @constant "^[A-Z][A-Z\\d_]+$"))
+
+(labeled_statement
+  (identifier) @label)
+
+[
+  "abstract"
+  "assert"
+  "break"
+  "case"
+  "catch"
+  "class"
+  "continue"
+  "default"
+  "do"
+  "else"
+  "enum"
+  "extends"
+  "final"
+  "finally"
+  "for"
+  "if"
+  "implements"
+  "import"
+  "instanceof"
+  "interface"
+  "native"
+  "new"
+  "package"
+  "private"
+  "protected"
+  "public"
+  "return"
+  "static"
+  "switch"
+  "synchronized"
+  "throw"
+  "throws"
+  "transient"
+  "try"
+  "volatile"
+  "while"
+] @keyword
@@ -0,0 +1,4 @@
+; Code blocks of tree-sitter-json, shown as guides and folded
+
+(object) @scope.marked
+(array) @scope.marked
@@ -0,0 +1,4 @@
+; Bracket pairs of tree-sitter-json
+
+(object "{" @editor.brackets.open "}" @editor.brackets.close)
+(array "[" @editor.brackets.open "]" @editor.brackets.close)
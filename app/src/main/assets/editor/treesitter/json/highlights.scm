@@ -0,0 +1,19 @@
+; Highlights of tree-sitter-json, the most specific patterns first
+
+(comment) @comment
+
+(escape_sequence) @string.escape
+
+(pair
+  key: (string) @property)
+
+(string) @string
+
+(number) @number
+
+[
+  (true)
+  (false)
+] @boolean
+
+(null) @constant.builtin
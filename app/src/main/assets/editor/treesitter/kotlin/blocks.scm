@@ -0,0 +1,8 @@
+; Code blocks of tree-sitter-kotlin, shown as guides and folded
+
+(class_body) @scope.marked
+(enum_class_body) @scope.marked
+(function_body) @scope.marked
+(control_structure_body) @scope.marked
+(lambda_literal) @scope
+(when_expression) @scope
@@ -0,0 +1,12 @@
+; Bracket pairs of tree-sitter-kotlin
+
+(class_body "{" @editor.brackets.open "}" @editor.brackets.close)
+(enum_class_body "{" @editor.brackets.open "}" @editor.brackets.close)
+(function_body "{" @editor.brackets.open "}" @editor.brackets.close)
+(control_structure_body "{" @editor.brackets.open "}" @editor.brackets.close)
+(lambda_literal "{" @editor.brackets.open "}" @editor.brackets.close)
+(when_expression "{" @editor.brackets.open "}" @editor.brackets.close)
+(function_value_parameters "(" @editor.brackets.open ")" @editor.brackets.close)
+(value_arguments "(" @editor.brackets.open ")" @editor.brackets.close)
+(parenthesized_expression "(" @editor.brackets.open ")" @editor.brackets.close)
+(indexing_suffix "[" @editor.brackets.open "]" @editor.brackets.close)
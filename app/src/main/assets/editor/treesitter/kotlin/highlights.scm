@@ -0,0 +1,96 @@
+; Highlights of tree-sitter-kotlin, the most specific patterns first
+
+[
+  (line_comment)
+  (multiline_comment)
+] @comment
+
+[
+  (string_literal)
+  (character_literal)
+] @string
+
+[
+  (integer_literal)
+  (long_literal)
+  (hex_literal)
+  (bin_literal)
+  (unsigned_literal)
+  (real_literal)
+] @number
+
+(boolean_literal) @boolean
+
+"null" @constant.builtin
+
+[
+  (this_expression)
+  (super_expression)
+] @variable.builtin
+
+(annotation
+  (user_type
+    (type_identifier) @attribute))
+
+(function_declaration
+  (simple_identifier) @function)
+(call_expression
+  (simple_identifier) @function.call)
+(call_expression
+  (navigation_expression
+    (navigation_suffix
+      (simple_identifier) @function.call)))
+
+(type_identifier) @type
+
+(navigation_suffix
+  (simple_identifier) @property)
+
+((simple_identifier) @constant
+  (#match? @constant "^[A-Z][A-Z\\d_]+$"))
+
+(label) @label
+
+[
+  (class_modifier)
+  (member_modifier)
+  (function_modifier)
+  (property_modifier)
+  (platform_modifier)
+  (variance_modifier)
+  (parameter_modifier)
+  (visibility_modifier)
+  (reification_modifier)
+  (inheritance_modifier)
+] @keyword
+
+[
+  "as"
+  "break"
+  "catch"
+  "class"
+  "companion"
+  "constructor"
+  "continue"
+  "do"
+  "else"
+  "finally"
+  "for"
+  "fun"
+  "if"
+  "import"
+  "in"
+  "init"
+  "interface"
+  "is"
+  "object"
+  "package"
+  "return"
+  "throw"
+  "try"
+  "typealias"
+  "val"
+  "var"
+  "when"
+  "while"
+] @keyword
@@ -0,0 +1,5 @@
+; Code blocks of tree-sitter-python, shown as guides and folded
+
+(block) @scope.marked
+(dictionary) @scope
+(list) @scope
@@ -0,0 +1,10 @@
+; Bracket pairs of tree-sitter-python
+
+(parameters "(" @editor.brackets.open ")" @editor.brackets.close)
+(argument_list "(" @editor.brackets.open ")" @editor.brackets.close)
+(parenthesized_expression "(" @editor.brackets.open ")" @editor.brackets.close)
+(tuple "(" @editor.brackets.open ")" @editor.brackets.close)
+(list "[" @editor.brackets.open "]" @editor.brackets.close)
+(subscript "[" @editor.brackets.open "]" @editor.brackets.close)
+(dictionary "{" @editor.brackets.open "}" @editor.brackets.close)
+(set "{" @editor.brackets.open "}" @editor.brackets.close)
@@ -0,0 +1,79 @@
+; Highlights of tree-sitter-python, the most specific patterns first
+
+(comment) @comment
+
+(escape_sequence) @string.escape
+
+(string) @string
+
+[
+  (integer)
+  (float)
+] @number
+
+[
+  (true)
+  (false)
+] @boolean
+
+(none) @constant.builtin
+
+((identifier) @variable.builtin
+  (#match? @variable.builtin "^(self|cls)$"))
+
+(decorator) @attribute
+
+(function_definition
+  name: (identifier) @function)
+(call
+  function: (identifier) @function.call)
+(call
+  function: (attribute
+    attribute: (identifier) @function.call))
+
+(class_definition
+  name: (identifier) @type)
+
+(attribute
+  attribute: (identifier) @property)
+
+((identifier) @constant
+  (#match? @constant "^[A-Z][A-Z\\d_]+$"))
+
+[
+  "and"
+  "in"
+  "is"
+  "not"
+  "or"
+] @keyword.operator
+
+[
+  "as"
+  "assert"
+  "async"
+  "await"
+  "break"
+  "class"
+  "continue"
+  "def"
+  "del"
+  "elif"
+  "else"
+  "except"
+  "finally"
+  "for"
+  "from"
+  "global"
+  "if"
+  "import"
+  "lambda"
+  "nonlocal"
+  "pass"
+  "raise"
+  "return"
+  "try"
+  "while"
+  "with"
+  "yield"
+] @keyword
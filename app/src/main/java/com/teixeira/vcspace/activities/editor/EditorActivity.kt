@@ -44,6 +44,8 @@ import com.teixeira.vcspace.activities.BaseComposeActivity
 import com.teixeira.vcspace.activities.editor.EditorHandlerActivity.Companion.EXTRA_KEY_PLUGIN_MANIFEST
 import com.teixeira.vcspace.app.noLocalProvidedFor
 import com.teixeira.vcspace.editor.events.OnContentChangeEvent
+import com.teixeira.vcspace.editor.events.OnEditsRecoveredEvent
+import com.teixeira.vcspace.events.OnRenameFileEvent
 import com.teixeira.vcspace.extensions.toFile
 import com.teixeira.vcspace.preferences.pluginsPath
 import com.teixeira.vcspace.screens.editor.EditorScreen
@@ -52,7 +54,6 @@ import com.teixeira.vcspace.screens.editor.components.EditorTopBar
 import com.teixeira.vcspace.viewmodel.editor.EditorViewModel
 import com.teixeira.vcspace.viewmodel.file.FileExplorerViewModel
 import com.vcspace.plugins.Manifest
-import io.github.rosemoe.sora.event.ContentChangeEvent
 import org.greenrobot.eventbus.EventBus
 import org.greenrobot.eventbus.Subscribe
 import org.greenrobot.eventbus.ThreadMode
@@ -71,12 +72,19 @@ class EditorActivity : BaseComposeActivity() {
   fun onContentChangeEvent(e: OnContentChangeEvent) {
     Log.d("EditorActivity", "Content change event received: ${e.file?.name}")
 
-    if (e.file != null) {
-      editorViewModel.setModified(
-        e.file!!,
-        e.event.action != ContentChangeEvent.ACTION_SET_NEW_TEXT
-      )
-    }
+    val file = e.file ?: return
+    val editorView = editorViewModel.getEditorForFile(file) ?: return
+    editorViewModel.setModified(file, editorView.modified)
+  }
+
+  @Subscribe(threadMode = ThreadMode.MAIN)
+  fun onEditsRecoveredEvent(e: OnEditsRecoveredEvent) {
+    editorViewModel.setModified(e.file, true)
+  }
+
+  @Subscribe(threadMode = ThreadMode.MAIN)
+  fun onRenameFileEvent(e: OnRenameFileEvent) {
+    editorViewModel.renameFile(e.oldFile, e.newFile)
   }
 
   @Composable
@@ -95,11 +103,11 @@ class EditorActivity : BaseComposeActivity() {
           }
 
           Lifecycle.Event.ON_PAUSE -> {
-            editorViewModel.rememberLastFiles()
+            editorViewModel.rememberLastFiles(flush = true)
           }
 
           Lifecycle.Event.ON_DESTROY -> {
-            editorViewModel.rememberLastFiles()
+            editorViewModel.rememberLastFiles(flush = true)
             EventBus.getDefault().unregister(this@EditorActivity)
           }
 
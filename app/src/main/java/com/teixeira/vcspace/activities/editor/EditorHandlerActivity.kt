@@ -19,30 +19,29 @@ import android.content.DialogInterface
 import android.net.Uri
 import android.os.Build
 import android.os.Bundle
-import android.util.SparseArray
+import android.view.View
 import androidx.activity.viewModels
 import androidx.appcompat.widget.PopupMenu
-import androidx.core.util.forEach
 import androidx.core.view.isVisible
 import androidx.lifecycle.lifecycleScope
-import com.blankj.utilcode.util.FileUtils
 import com.blankj.utilcode.util.PathUtils
-import com.blankj.utilcode.util.ThreadUtils
 import com.blankj.utilcode.util.UriUtils
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import com.google.android.material.tabs.TabLayout
-import com.google.gson.Gson
+import com.teixeira.vcspace.editor.AutoSaveScheduler
 import com.teixeira.vcspace.editor.CodeEditorView
 import com.teixeira.vcspace.editor.events.OnContentChangeEvent
+import com.teixeira.vcspace.editor.events.OnEditsRecoveredEvent
+import com.teixeira.vcspace.editor.readOrMigrate
+import com.teixeira.vcspace.editor.session.DocumentState
+import com.teixeira.vcspace.editor.session.SessionStore
 import com.teixeira.vcspace.events.OnDeleteFileEvent
 import com.teixeira.vcspace.events.OnRenameFileEvent
 import com.teixeira.vcspace.extensions.toFile
-import com.teixeira.vcspace.models.FileHistory
 import com.teixeira.vcspace.preferences.editorTabsAutosave
 import com.teixeira.vcspace.preferences.pluginsPath
 import com.teixeira.vcspace.preferences.rememberLastOpenedFile
 import com.teixeira.vcspace.resources.R
-import com.teixeira.vcspace.tasks.TaskExecutor.executeAsyncProvideError
 import com.teixeira.vcspace.utils.UniqueNameBuilder
 import com.teixeira.vcspace.utils.showShortToast
 import com.teixeira.vcspace.viewmodel.EditorViewModel
@@ -65,9 +64,18 @@ import java.io.File
 abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSelectedListener {
 
   protected val editorViewModel by viewModels<EditorViewModel>()
-  private var fileSaver: Runnable? = null
+  private val autoSaveScheduler = AutoSaveScheduler(lifecycleScope) { autoSaveFile(it) }
 
   private val openedFiles = mutableListOf<String>()
+  /** Short names of the opened files, kept up to date as tabs are opened, closed and renamed. */
+  private var tabNames = UniqueNameBuilder<String>("", File.separator)
+
+  private val sessionStore = SessionStore()
+  /** States of the restored tabs whose editor was not created yet. */
+  private val restoredStates = HashMap<String, DocumentState>()
+
+  /** Whether the tabs of the last session are still being read, they must not be overwritten. */
+  private var restoringSession = false
 
   companion object {
     const val EXTRA_KEY_PLUGIN_MANIFEST = "plugin_manifest"
@@ -79,8 +87,6 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
   override fun onCreate(savedInstanceState: Bundle?) {
     super.onCreate(savedInstanceState)
 
-    fileSaver = Runnable { saveAllFilesAsync(false) }
-
     binding.tabs.addOnTabSelectedListener(this)
     observeEditorViewModel()
 
@@ -113,9 +119,7 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
 
   override fun postDestroy() {
     super.postDestroy()
-
-    fileSaver?.also { ThreadUtils.getMainHandler().removeCallbacks(it) }
-    fileSaver = null
+    autoSaveScheduler.cancelAll()
   }
 
   override fun onTabReselected(tab: TabLayout.Tab) {
@@ -166,9 +170,11 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
         if (tab != null && !tab.isSelected) {
           tab.select()
         }
+        val editor = if (index >= 0) hydrateEditor(index) else null
         container.displayedChild = index
-        symbolInput.bindEditor(getEditorAtIndex(index)?.editor)
+        symbolInput.bindEditor(editor?.editor)
       }
+      rememberLastFiles()
       invalidateOptionsMenu()
     }
   }
@@ -187,9 +193,28 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
 
       val index = editorViewModel.fileCount
 
-      val editorView = CodeEditorView(this, file)
+      editorViewModel.addFile(file)
+      binding.container.addView(createEditor(file))
+      binding.tabs.addTab(binding.tabs.newTab())
 
-      if (file.extension == "kt") {
+      editorViewModel.setSelectedFile(index)
+      openedFiles.add(file.absolutePath)
+      addTabName(file)
+    }
+  }
+
+  private fun createEditor(file: File): CodeEditorView {
+    val editorView = CodeEditorView(this, file)
+
+    if (file.extension == "kt") {
+      // Attached once the file is loaded and measured, large files get no language server until
+      // their mode becomes FULL
+      var lspConnected = false
+      fun connectLanguageServer() {
+        if (lspConnected || editorView.isLoading || !editorView.performanceMode.languageServer) {
+          return
+        }
+        lspConnected = true
         lifecycleScope.launch {
           editorView.editor.connectToKotlinLsp(
             lifecycleScope,
@@ -198,35 +223,76 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
           )
         }
       }
+      editorView.onLoadingChanged = { loading -> if (!loading) connectLanguageServer() }
+      editorView.onPerformanceModeChanged = { connectLanguageServer() }
+    }
+    return editorView
+  }
 
-      editorViewModel.addFile(file)
-      binding.container.addView(editorView)
-      binding.tabs.addTab(binding.tabs.newTab())
+  /**
+   * Adds a tab for each of [files] without creating their editors. A placeholder view stands for
+   * the editor until the tab is selected, see [hydrateEditor].
+   */
+  private fun restoreTabs(files: List<File>, selectedPath: String?) {
+    // A file opened through the intent keeps the selection
+    val hadFiles = editorViewModel.fileCount > 0
+    files.forEach { file ->
+      if (!file.isFile || findIndexAtFile(file) != -1) return@forEach
 
-      editorViewModel.setSelectedFile(index)
+      editorViewModel.addFile(file)
+      binding.container.addView(View(this))
+      binding.tabs.addTab(binding.tabs.newTab(), false)
       openedFiles.add(file.absolutePath)
-      updateTabs()
+      addTabName(file)
+    }
+    if (editorViewModel.fileCount == 0) return
+
+    if (!hadFiles) {
+      val selectedIndex = openedFiles.indexOf(selectedPath)
+      editorViewModel.setSelectedFile(
+        if (selectedIndex != -1) selectedIndex else editorViewModel.fileCount - 1
+      )
     }
   }
 
+  /** Returns the editor at [index], creating it first if the tab was restored as a placeholder. */
+  private fun hydrateEditor(index: Int): CodeEditorView? {
+    getEditorAtIndex(index)?.let {
+      return it
+    }
+    val file = editorViewModel.openedFiles.getOrNull(index) ?: return null
+
+    val editorView = createEditor(file)
+    restoredStates.remove(file.path)?.let { editorView.restoreState(it) }
+    binding.container.apply {
+      removeViewAt(index)
+      addView(editorView, index)
+    }
+    return editorView
+  }
+
   fun closeFile(index: Int) {
     if (index >= 0 && index < editorViewModel.fileCount) {
-      val editor = getEditorAtIndex(index) ?: return
-
-      val file = editor.file
-      if (editor.modified && file != null) {
-        notifyUnsavedFile(file) { closeFile(index) }
-        return
+      // Tabs restored from the last session have no editor until they are selected
+      val editor = getEditorAtIndex(index)
+
+      val file = editor?.file ?: editorViewModel.openedFiles[index]
+      if (editor != null) {
+        if (editor.modified) {
+          notifyUnsavedFile(file) { closeFile(index) }
+          return
+        }
+        autoSaveScheduler.cancel(editor)
+        editor.release()
       }
-      editor.release()
 
       editorViewModel.removeFile(index)
       binding.apply {
         tabs.removeTabAt(index)
         container.removeViewAt(index)
       }
-      openedFiles.remove(file?.absolutePath)
-      updateTabs()
+      openedFiles.remove(file.absolutePath)
+      updateTabNames(tabNames.removePath(file.absolutePath))
     }
   }
 
@@ -239,9 +305,7 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
       val file = editorViewModel.selectedFile
       var pos: Int = 0
       while (editorViewModel.fileCount > 1) {
-        val editor = getEditorAtIndex(pos) ?: continue
-
-        if (file != editor.file) {
+        if (file != editorViewModel.openedFiles[pos]) {
           closeFile(pos)
         } else {
           pos = 1
@@ -256,6 +320,7 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
       notifyUnsavedFiles(getUnsavedFiles()) { closeAll() }
       return
     }
+    autoSaveScheduler.cancelAll()
     for (i in 0 until editorViewModel.fileCount) {
       getEditorAtIndex(i)?.release()
     }
@@ -267,6 +332,7 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
       container.removeAllViews()
     }
     openedFiles.clear()
+    tabNames = UniqueNameBuilder("", File.separator)
   }
 
   fun saveAllFilesAsync(notify: Boolean, whenSave: Runnable? = null) {
@@ -291,6 +357,15 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
     }
   }
 
+  private suspend fun autoSaveFile(editor: CodeEditorView) {
+    if (!editor.saveFile()) return
+
+    withContext(Dispatchers.Main) {
+      binding.tabs.getTabAt(findIndexAtFile(editor.file))?.markUnmodified()
+      invalidateOptionsMenu()
+    }
+  }
+
   private suspend fun saveFile(index: Int, whenSave: Runnable?) {
     getEditorAtIndex(index)?.saveFile()
 
@@ -334,13 +409,7 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
   }
 
   fun findIndexAtFile(file: File?): Int {
-    val files = editorViewModel.openedFiles
-    for (i in files.indices) {
-      if (files[i] == file) {
-        return i
-      }
-    }
-    return -1
+    return if (file != null) editorViewModel.indexOf(file) else -1
   }
 
   @Subscribe(threadMode = ThreadMode.MAIN)
@@ -351,29 +420,36 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
       return
     }
 
-    if (editorTabsAutosave) {
-      fileSaver?.also {
-        ThreadUtils.getMainHandler().removeCallbacks(it)
-        ThreadUtils.getMainHandler().postDelayed(it, 100L)
-      }
+    val editor = getEditorAtIndex(index) ?: return
+    val modified = editor.modified
+    if (editorTabsAutosave && modified) {
+      autoSaveScheduler.markDirty(editor)
     }
 
     val tab = binding.tabs.getTabAt(index) ?: return
-    val modified = getEditorAtIndex(index)!!.modified
 
     if (modified) {
       tab.markModified()
     } else tab.markUnmodified()
   }
 
+  @Subscribe(threadMode = ThreadMode.MAIN)
+  fun onEditsRecovered(event: OnEditsRecoveredEvent) {
+    invalidateOptionsMenu()
+    val index = findIndexAtFile(event.file)
+    binding.tabs.getTabAt(index)?.markModified()
+  }
+
   @Subscribe(threadMode = ThreadMode.MAIN)
   fun onFileRenamed(event: OnRenameFileEvent) {
     invalidateOptionsMenu()
     val index = findIndexAtFile(event.oldFile)
-    val editor = getEditorAtIndex(index) ?: return
+    if (index == -1) return
     editorViewModel.updateFile(index, event.newFile)
-    editor.updateFile(event.newFile, false)
-    updateTabs()
+    getEditorAtIndex(index)?.updateFile(event.newFile, false)
+    openedFiles[index] = event.newFile.absolutePath
+    updateTabNames(tabNames.removePath(event.oldFile.absolutePath))
+    addTabName(event.newFile)
   }
 
   @Subscribe(threadMode = ThreadMode.MAIN)
@@ -381,35 +457,17 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
     closeFile(findIndexAtFile(event.file))
   }
 
-  /** from AndroidIDE com.itsaky.androidide.activities.editor.EditorHandlerActivity */
-  private fun updateTabs() {
-    executeAsyncProvideError({
-      val files = editorViewModel.openedFiles
-      val dupliCount = mutableMapOf<String, Int>()
-      val names = SparseArray<String>()
-      val nameBuilder = UniqueNameBuilder<File>("", File.separator)
-
-      files.forEach {
-        dupliCount[it.name] = (dupliCount[it.name] ?: 0) + 1
-        nameBuilder.addPath(it, it.path)
-      }
-
-      for (i in 0 until binding.tabs.tabCount) {
-        val file = files[i]
-        val count = dupliCount[file.name] ?: 0
-        val isModified = getEditorAtIndex(i)?.modified ?: false
-        val name = if (count > 1) nameBuilder.getShortPath(file) else file.name
-        names[i] = if (isModified) "*$name" else name
-      }
-      names
-    }) { result, error ->
-      if (result == null || error != null || isDestroying) {
-        return@executeAsyncProvideError
-      }
+  private fun addTabName(file: File) {
+    updateTabNames(tabNames.addPath(file.absolutePath, file.absolutePath))
+  }
 
-      ThreadUtils.runOnUiThread {
-        result.forEach { index, name -> binding.tabs.getTabAt(index)?.text = name }
-      }
+  /** Updates the titles of the tabs of [paths], whose short names changed. */
+  private fun updateTabNames(paths: Set<String>) {
+    for (path in paths) {
+      val index = openedFiles.indexOf(path)
+      val tab = binding.tabs.getTabAt(index) ?: continue
+      val name = tabNames.getShortPath(path)
+      tab.text = if (getEditorAtIndex(index)?.modified == true) "*$name" else name
     }
   }
 
@@ -469,29 +527,40 @@ abstract class EditorHandlerActivity : BaseEditorActivity(), TabLayout.OnTabSele
   }
 
   private fun openLastFiles() {
-    File(LAST_OPENED_FILES_JSON_PATH).apply {
-      if (!exists()) return@apply
-
-      val fileHistory = Gson().fromJson(readText(), FileHistory::class.java)
-      fileHistory.lastOpenedFilesPath.forEach { openFile(it.toFile()) }
+    restoringSession = true
+    lifecycleScope.launch {
+      val (session, files) =
+        withContext(Dispatchers.IO) {
+          val session = sessionStore.readOrMigrate(File(LAST_OPENED_FILES_JSON_PATH))
+          session to session.paths.map { it.toFile() }.filter { it.isFile }
+        }
+      restoringSession = false
+      restoredStates.putAll(session.documents)
+      if (!isDestroying) restoreTabs(files, session.paths.getOrNull(session.selectedIndex))
     }
   }
 
-  private fun rememberLastFiles() {
-    val lastOpenedFiles = Gson().toJson(FileHistory(openedFiles))
-    File(LAST_OPENED_FILES_JSON_PATH).apply {
-      FileUtils.createOrExistsFile(this)
-      writeText(lastOpenedFiles)
+  /**
+   * Stores the open tabs and the state of their editors in the session. The write is debounced
+   * unless [flush] is true.
+   */
+  private fun rememberLastFiles(flush: Boolean = false) {
+    if (restoringSession) return
+
+    val documents = (0 until editorViewModel.fileCount).mapNotNull {
+      getEditorAtIndex(it)?.captureState()
     }
+    sessionStore.update(openedFiles.toList(), editorViewModel.selectedFileIndex, documents)
+    if (flush) sessionStore.flush()
   }
 
   override fun onPause() {
-    rememberLastFiles()
+    rememberLastFiles(flush = true)
     super.onPause()
   }
 
   override fun onDestroy() {
-    rememberLastFiles()
+    rememberLastFiles(flush = true)
     super.onDestroy()
   }
 }
@@ -51,6 +51,7 @@ class VCSpaceApplication : BaseApplication() {
     PRDownloader.initialize(applicationContext)
     GrammarProvider.initialize(this)
     loadDefaultThemes()
+    GrammarProvider.warmUp()
 
     ThreadUtils.executeByIoWithDelay(object : ThreadUtils.Task<Unit>() {
       override fun doInBackground() {
@@ -71,6 +72,13 @@ class VCSpaceApplication : BaseApplication() {
     }, 2, TimeUnit.SECONDS)
   }
 
+  override fun onTrimMemory(level: Int) {
+    super.onTrimMemory(level)
+    if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      GrammarProvider.cancelWarmUp()
+    }
+  }
+
   private fun loadDefaultThemes() {
     FileProviderRegistry.getInstance().dispose()
     FileProviderRegistry.getInstance().addFileProvider(AssetsFileResolver(assets))
@@ -16,9 +16,13 @@
 package com.teixeira.vcspace.core.components.editor
 
 import androidx.compose.material3.DropdownMenuItem
+import androidx.compose.material3.HorizontalDivider
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.getValue
 import androidx.compose.ui.res.stringResource
+import androidx.lifecycle.compose.collectAsStateWithLifecycle
+import com.teixeira.vcspace.editor.performance.PerformanceMode
 import com.teixeira.vcspace.resources.R.string
 import com.teixeira.vcspace.viewmodel.editor.EditorViewModel
 
@@ -28,6 +32,11 @@ fun FileTabActions(
   index: Int,
   onClick: () -> Unit = {}
 ) {
+  val splitPane by editorViewModel.splitPane.collectAsStateWithLifecycle()
+  val uiState by editorViewModel.uiState.collectAsStateWithLifecycle()
+  val openedFile = uiState.openedFiles.getOrNull(index) ?: return
+  val performanceMode by openedFile.performanceMode.collectAsStateWithLifecycle()
+
   DropdownMenuItem(
     text = { Text(stringResource(string.close)) },
     onClick = {
@@ -51,6 +60,55 @@ fun FileTabActions(
       onClick()
     }
   )
+
+  HorizontalDivider()
+
+  if (editorViewModel.canSplit(index)) {
+    DropdownMenuItem(
+      text = { Text(stringResource(string.split_right)) },
+      onClick = {
+        editorViewModel.openSplitPane(index, stacked = false)
+        onClick()
+      }
+    )
+
+    DropdownMenuItem(
+      text = { Text(stringResource(string.split_down)) },
+      onClick = {
+        editorViewModel.openSplitPane(index, stacked = true)
+        onClick()
+      }
+    )
+  }
+
+  if (splitPane != null) {
+    DropdownMenuItem(
+      text = { Text(stringResource(string.close_split)) },
+      onClick = {
+        editorViewModel.closeSplitPane()
+        onClick()
+      }
+    )
+  }
+
+  HorizontalDivider()
+
+  // The user can force a tab into the mode of their choice, or give it back to the policy
+  val performanceOverride = editorViewModel.getPerformanceOverride(index)
+  val (performanceAction, targetMode) =
+    when {
+      performanceOverride != null -> string.performance_mode_automatic to null
+      performanceMode == PerformanceMode.FULL ->
+        string.performance_mode_reduce to PerformanceMode.REDUCED
+      else -> string.performance_mode_full to PerformanceMode.FULL
+    }
+  DropdownMenuItem(
+    text = { Text(stringResource(performanceAction)) },
+    onClick = {
+      editorViewModel.setPerformanceOverride(index, targetMode)
+      onClick()
+    }
+  )
 }
 
 
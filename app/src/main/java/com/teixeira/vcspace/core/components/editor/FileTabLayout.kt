@@ -16,9 +16,16 @@
 package com.teixeira.vcspace.core.components.editor
 
 import androidx.compose.animation.core.animateDpAsState
+import androidx.compose.foundation.layout.Row
 import androidx.compose.foundation.layout.fillMaxWidth
+import androidx.compose.foundation.layout.padding
+import androidx.compose.foundation.layout.size
+import androidx.compose.material.icons.Icons
+import androidx.compose.material.icons.outlined.Description
+import androidx.compose.material.icons.outlined.Speed
 import androidx.compose.material3.DropdownMenu
 import androidx.compose.material3.HorizontalDivider
+import androidx.compose.material3.Icon
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.ScrollableTabRow
 import androidx.compose.material3.Tab
@@ -29,14 +36,19 @@ import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.State
 import androidx.compose.runtime.getValue
+import androidx.compose.runtime.key
 import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.remember
 import androidx.compose.runtime.setValue
+import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
+import androidx.compose.ui.res.stringResource
 import androidx.compose.ui.unit.Dp
 import androidx.compose.ui.unit.DpOffset
 import androidx.compose.ui.unit.dp
 import androidx.lifecycle.compose.collectAsStateWithLifecycle
+import com.teixeira.vcspace.editor.performance.PerformanceMode
+import com.teixeira.vcspace.resources.R
 import com.teixeira.vcspace.viewmodel.editor.EditorViewModel
 
 @Composable
@@ -98,23 +110,46 @@ fun FileTabLayout(
     }
   ) {
     openedFiles.forEachIndexed { index, openedFile ->
-      Tab(
-        selected = index == selectedFileIndex,
-        onClick = {
-          if (index == selectedFileIndex) {
-            showTabMenu = true
-          } else {
-            editorViewModel.selectFile(index)
+      key(openedFile.key) {
+        Tab(
+          selected = index == selectedFileIndex,
+          onClick = {
+            if (index == selectedFileIndex) {
+              showTabMenu = true
+            } else {
+              editorViewModel.selectFile(index)
+            }
+          },
+          text = {
+            // Only this text observes the document, so editing it does not recompose other tabs
+            val title by openedFile.title.collectAsStateWithLifecycle()
+            val isModified by openedFile.isModified.collectAsStateWithLifecycle()
+            val performanceMode by openedFile.performanceMode.collectAsStateWithLifecycle()
+            Row(verticalAlignment = Alignment.CenterVertically) {
+              Text(text = if (isModified) "*$title" else title)
+              PerformanceModeIcon(performanceMode)
+            }
           }
-        },
-        text = {
-          Text(
-            text = if (openedFile.isModified) "*${openedFile.file.name}" else openedFile.file.name
-          )
-        }
-      )
+        )
+      }
     }
   }
 
   HorizontalDivider(thickness = 1.dp)
 }
+
+/** Tells that the document of a tab is edited without some features, as it is large. */
+@Composable
+private fun PerformanceModeIcon(mode: PerformanceMode) {
+  val (icon, description) =
+    when (mode) {
+      PerformanceMode.FULL -> return
+      PerformanceMode.REDUCED -> Icons.Outlined.Speed to R.string.performance_mode_reduced
+      PerformanceMode.MINIMAL -> Icons.Outlined.Description to R.string.performance_mode_minimal
+    }
+  Icon(
+    imageVector = icon,
+    contentDescription = stringResource(description),
+    modifier = Modifier.padding(start = 4.dp).size(14.dp)
+  )
+}
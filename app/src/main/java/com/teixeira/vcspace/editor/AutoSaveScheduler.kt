@@ -0,0 +1,109 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor
+
+import android.os.SystemClock
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+
+/**
+ * Saves the editors passed to [markDirty] once they are quiet for [quietPeriod], but never later
+ * than [maxLatency] after their first unsaved edit. Must be used from the main thread.
+ */
+class AutoSaveScheduler(
+  private val scope: CoroutineScope,
+  private val quietPeriod: Long = DEFAULT_QUIET_PERIOD,
+  private val maxLatency: Long = DEFAULT_MAX_LATENCY,
+  maxConcurrentSaves: Int = DEFAULT_MAX_CONCURRENT_SAVES,
+  private val save: suspend (CodeEditorView) -> Unit,
+) {
+
+  private val semaphore = Semaphore(maxConcurrentSaves)
+
+  private val dirtySince = LinkedHashMap<CodeEditorView, Long>()
+  private val saving = mutableSetOf<CodeEditorView>()
+
+  private var lastEditTime = 0L
+  private var flushJob: Job? = null
+
+  /** Schedules [editor] to be saved after the current burst of edits. */
+  fun markDirty(editor: CodeEditorView) {
+    val now = SystemClock.uptimeMillis()
+    lastEditTime = now
+    if (editor !in dirtySince) dirtySince[editor] = now
+    scheduleFlush()
+  }
+
+  /** Stops tracking [editor], e.g. because it was closed or saved by the user. */
+  fun cancel(editor: CodeEditorView) {
+    dirtySince.remove(editor)
+  }
+
+  /** Whether [editor] is waiting to be saved or being saved. */
+  fun isPending(editor: CodeEditorView): Boolean {
+    return editor in dirtySince || editor in saving
+  }
+
+  fun cancelAll() {
+    dirtySince.clear()
+    flushJob?.cancel()
+    flushJob = null
+  }
+
+  private fun scheduleFlush() {
+    if (dirtySince.isEmpty()) return
+
+    val oldestEdit = dirtySince.values.min()
+    val flushAt = minOf(lastEditTime + quietPeriod, oldestEdit + maxLatency)
+    val delayMillis = (flushAt - SystemClock.uptimeMillis()).coerceAtLeast(0L)
+
+    flushJob?.cancel()
+    flushJob =
+      scope.launch(Dispatchers.Main) {
+        delay(delayMillis)
+        flush()
+      }
+  }
+
+  private fun flush() {
+    val editors = dirtySince.keys.filter { it !in saving }
+    editors.forEach { editor ->
+      dirtySince.remove(editor)
+      saving.add(editor)
+
+      scope.launch(Dispatchers.Main) {
+        try {
+          semaphore.withPermit { save(editor) }
+        } finally {
+          saving.remove(editor)
+          // Edits made while saving are flushed in the next round
+          scheduleFlush()
+        }
+      }
+    }
+  }
+
+  companion object {
+    const val DEFAULT_QUIET_PERIOD = 1000L
+    const val DEFAULT_MAX_LATENCY = 5000L
+    const val DEFAULT_MAX_CONCURRENT_SAVES = 2
+  }
+}
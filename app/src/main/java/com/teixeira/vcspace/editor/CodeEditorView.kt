@@ -5,10 +5,33 @@ import android.content.Context
 import android.view.LayoutInflater
 import android.widget.LinearLayout
 import androidx.core.content.res.ResourcesCompat
+import androidx.core.view.doOnLayout
 import androidx.core.view.isVisible
-import com.blankj.utilcode.util.FileIOUtils
+import androidx.appcompat.app.AlertDialog
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
 import com.teixeira.vcspace.editor.databinding.LayoutCodeEditorBinding
+import com.teixeira.vcspace.editor.document.Document
+import com.teixeira.vcspace.editor.document.TextSnapshot
+import com.teixeira.vcspace.editor.events.OnEditsRecoveredEvent
+import com.teixeira.vcspace.editor.highlight.CachedHighlight
+import com.teixeira.vcspace.editor.highlight.HighlightCache
+import com.teixeira.vcspace.editor.highlight.HighlightMetrics
+import com.teixeira.vcspace.editor.highlight.LineLengths
+import com.teixeira.vcspace.editor.highlight.ViewportHighlightLanguage
+import com.teixeira.vcspace.editor.highlight.textMateLanguage
+import com.teixeira.vcspace.editor.io.ChunkedTextReader
+import com.teixeira.vcspace.editor.io.ContentWriter
+import com.teixeira.vcspace.editor.io.FileStamp
+import com.teixeira.vcspace.editor.io.FileWatcher
+import com.teixeira.vcspace.editor.io.MappedTextFile
+import com.teixeira.vcspace.editor.journal.EditJournal
+import com.teixeira.vcspace.editor.performance.PerformanceMode
+import com.teixeira.vcspace.editor.performance.PerformancePolicy
+import com.teixeira.vcspace.editor.performance.PerformanceThresholds
+import com.teixeira.vcspace.editor.session.DocumentState
+import com.teixeira.vcspace.editor.session.EditHistory
+import com.teixeira.vcspace.editor.treesitter.TreeSitterLanguages
+import com.teixeira.vcspace.editor.treesitter.isTreeSitter
 import com.teixeira.vcspace.events.OnPreferenceChangeEvent
 import com.teixeira.vcspace.preferences.PREF_APPEARANCE_UI_MODE_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_COLORSCHEME_KEY
@@ -19,7 +42,13 @@ import com.teixeira.vcspace.preferences.PREF_EDITOR_FONT_SIZE_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_FONT_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_INDENT_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_LINENUMBER_KEY
+import com.teixeira.vcspace.preferences.PREF_EDITOR_MINIMAL_MODE_LINES_KEY
+import com.teixeira.vcspace.preferences.PREF_EDITOR_MINIMAL_MODE_LINE_LENGTH_KEY
+import com.teixeira.vcspace.preferences.PREF_EDITOR_MINIMAL_MODE_SIZE_KEY
+import com.teixeira.vcspace.preferences.PREF_EDITOR_REDUCED_MODE_LINES_KEY
+import com.teixeira.vcspace.preferences.PREF_EDITOR_REDUCED_MODE_SIZE_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_STICKYSCROLL_KEY
+import com.teixeira.vcspace.preferences.PREF_EDITOR_TREE_SITTER_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_USETAB_KEY
 import com.teixeira.vcspace.preferences.PREF_EDITOR_WORDWRAP_KEY
 import com.teixeira.vcspace.preferences.editorColorScheme
@@ -29,24 +58,45 @@ import com.teixeira.vcspace.preferences.editorFont
 import com.teixeira.vcspace.preferences.editorFontLigatures
 import com.teixeira.vcspace.preferences.editorFontSize
 import com.teixeira.vcspace.preferences.editorIndent
+import com.teixeira.vcspace.preferences.editorLargeFileThreshold
 import com.teixeira.vcspace.preferences.editorLineNumber
+import com.teixeira.vcspace.preferences.editorMinimalModeLineLength
+import com.teixeira.vcspace.preferences.editorMinimalModeLines
+import com.teixeira.vcspace.preferences.editorMinimalModeSize
+import com.teixeira.vcspace.preferences.editorReducedModeLines
+import com.teixeira.vcspace.preferences.editorReducedModeSize
 import com.teixeira.vcspace.preferences.editorStickyScroll
+import com.teixeira.vcspace.preferences.editorTreeSitter
 import com.teixeira.vcspace.preferences.editorUseTab
 import com.teixeira.vcspace.preferences.editorWordWrap
 import com.teixeira.vcspace.providers.GrammarProvider
 import com.teixeira.vcspace.resources.R
+import com.teixeira.vcspace.utils.Logger
 import com.teixeira.vcspace.utils.cancelIfActive
+import com.teixeira.vcspace.utils.showShortToast
+import io.github.rosemoe.sora.event.ContentChangeEvent
+import io.github.rosemoe.sora.event.ScrollEvent
 import io.github.rosemoe.sora.lang.EmptyLanguage
 import io.github.rosemoe.sora.lang.Language
 import io.github.rosemoe.sora.langs.textmate.TextMateColorScheme
 import io.github.rosemoe.sora.langs.textmate.TextMateLanguage
 import io.github.rosemoe.sora.langs.textmate.registry.GrammarRegistry
 import io.github.rosemoe.sora.langs.textmate.registry.ThemeRegistry
+import io.github.rosemoe.sora.text.Content
 import io.github.rosemoe.sora.text.LineSeparator
+import io.github.rosemoe.sora.widget.EditorSearcher.SearchOptions
 import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
+import java.io.Closeable
 import java.io.File
+import java.io.IOException
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.greenrobot.eventbus.EventBus
@@ -54,7 +104,20 @@ import org.greenrobot.eventbus.Subscribe
 import org.greenrobot.eventbus.ThreadMode
 
 @SuppressLint("ViewConstructor")
-class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
+class CodeEditorView(
+  context: Context,
+  file: File,
+  hibernated: HibernatedEditor? = null,
+  /** Document that keeps the text of the file beyond the lifetime of this view. */
+  private val document: Document? = null,
+  /**
+   * Whether this view only shows the text of [document] loaded by another view, e.g. as the second
+   * pane of a split view. It then neither reads, watches nor journals the file.
+   */
+  private val followDocument: Boolean = false,
+) : LinearLayout(context) {
+
+  private val logger = Logger.newInstance("CodeEditorView")
 
   private val binding = LayoutCodeEditorBinding.inflate(LayoutInflater.from(context))
 
@@ -63,9 +126,93 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
   val editor: VCSpaceEditor
     get() = binding.editor
 
+  private val contentWriter = ContentWriter()
+  private val highlightCache = HighlightCache(File(context.cacheDir, "highlight"))
+  private var highlightStoreJob: Job? = null
+
+  private var journal = EditJournal(file)
+  private val editHistory = EditHistory()
+  @Volatile private var scopeName: String? = null
+  /** Whether the language of the file is still to be counted as opened, see [findScopeName]. */
+  @Volatile private var countOpen = false
+  /** State of the previous session, applied once the file is loaded. */
+  @Volatile private var pendingState: DocumentState? = null
+  private var loadJob: Job? = null
+  private var largeFileViewer: LargeFileViewer? = null
+  /** Whether the last read of the file failed, its partial text must never be saved. */
+  private var readFailed = false
+  /** Selection of this view while another view of the same document has the focus. */
+  private var paneSelection: IntArray? = null
+  private var attachedToDocument = false
+  private val onDocumentReplaced: () -> Unit = {
+    post {
+      val document = document
+      if (document != null && document.isLoaded && document.content !== editor.text) {
+        showDocument(document)
+      }
+    }
+  }
+
+  /** State of the file on disk when it was last loaded or saved, `null` if unknown. */
+  @Volatile private var diskStamp: FileStamp? = null
+  private var fileWatch: Closeable? = null
+  private var diskChangeJob: Job? = null
+  private var diskChangeDialog: AlertDialog? = null
+
   val modified: Boolean
     get() = editor.modified
 
+  /** Whether the file content is still being streamed into the editor. */
+  var isLoading: Boolean = false
+    private set
+
+  /** Called on the main thread when [isLoading] changes. */
+  var onLoadingChanged: ((Boolean) -> Unit)? = null
+
+  /**
+   * Features the text is edited with, chosen from its size and its lines by a [PerformancePolicy]
+   * unless [performanceOverride] is set. The preferences only apply to the features it keeps.
+   */
+  var performanceMode: PerformanceMode = PerformanceMode.FULL
+    private set
+
+  /** Called on the main thread when [performanceMode] changes. */
+  var onPerformanceModeChanged: ((PerformanceMode) -> Unit)? = null
+
+  /** Replaces in every open file from the search bar, `null` to only replace in this text. */
+  var openFilesReplace: ((String, String, SearchOptions) -> Unit)?
+    get() = binding.searcher.openFilesReplace
+    set(value) {
+      binding.searcher.openFilesReplace = value
+    }
+
+  /** Mode of this buffer chosen by the user, `null` to let the policy choose it. */
+  var performanceOverride: PerformanceMode? = null
+    set(value) {
+      if (field == value) return
+      field = value
+      // Setting the language applies the mode, highlighting included
+      if (!isLoading && largeFileViewer == null) updateLanguage()
+    }
+
+  /** Whether the file is too large to be loaded and only a window of it is shown and edited. */
+  val isLargeFileViewer: Boolean
+    get() = largeFileViewer != null
+
+  /**
+   * Whether the view can be released by [hibernate]. Loading, unsaved and large file editors stay
+   * alive, as their state cannot be rebuilt from the text alone.
+   */
+  val canHibernate: Boolean
+    get() =
+      !isLoading &&
+        !readFailed &&
+        largeFileViewer == null &&
+        !modified &&
+        file != null &&
+        // Other views, e.g. a split pane, still show the text
+        (document == null || document.attachedViews <= 1)
+
   var file: File?
     get() = editor.file
     set(value) {
@@ -81,25 +228,380 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
       this.file = file
     }
     configureEditor()
-    readFile(file)
+    editor.subscribeEvent(ContentChangeEvent::class.java) { event, _ ->
+      if (!followDocument && !isLoading && largeFileViewer == null) {
+        journal.record(event)
+        editHistory.record(event)
+      }
+    }
+    editor.subscribeEvent(ScrollEvent::class.java) { _, _ -> updateHighlightViewport() }
+    editor.setOnFocusChangeListener { _, hasFocus -> keepPaneSelection(hasFocus) }
+    if (followDocument) {
+      // The view that loads the document journals and watches the file
+      val document = checkNotNull(document) { "A following view needs a document" }
+      document.addContentReplacedListener(onDocumentReplaced)
+      if (document.isLoaded) showDocument(document) else setLoading(true)
+    } else {
+      // The document is only loaded if another view shows it, its text is the current one
+      if (document?.isLoaded == true) {
+        showDocument(document)
+      } else if (hibernated != null) {
+        wakeUp(hibernated)
+      } else {
+        countOpen = true
+        readFile(file, recoverEdits = true)
+      }
+      watchFile(file)
+    }
 
     addView(binding.root, LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT))
   }
 
-  private fun readFile(file: File) {
+  private fun readFile(file: File, recoverEdits: Boolean = false) {
+    loadJob?.cancel()
+    releaseLargeFileViewer()
+    readFailed = false
+    diskStamp = null
+    editHistory.clear()
+    if (file.length() > editorLargeFileThreshold) {
+      openLargeFile(file)
+      return
+    }
+
+    setLoading(true)
+    if (!recoverEdits) journal.reset()
+    loadJob = editorScope.launch(Dispatchers.IO) {
+      if (recoverEdits && restoreJournaledEdits(file)) return@launch
+
+      var stamp: FileStamp? = null
+      try {
+        val lastModified = file.lastModified()
+        val size = file.length()
+        ChunkedTextReader(file).use { reader ->
+          val firstChunk = reader.readChunk() ?: ""
+          // The thresholds count chars, the file has as many per byte as its first chunk
+          val bytesRead = reader.bytesRead
+          val length = if (bytesRead > 0) size * firstChunk.length / bytesRead else size
+          withContext(Dispatchers.Main) {
+            editor.setText(firstChunk, null)
+            // The length or a huge first line are enough to tell, before the rest is laid out
+            updatePerformanceMode(lengthHint = length)
+            // Appending the remaining chunks must not be undoable
+            editor.text.isUndoEnabled = false
+            setLoadProgress(reader.progress)
+          }
+
+          while (true) {
+            ensureActive()
+            val chunk = reader.readChunk() ?: break
+            val progress = reader.progress
+
+            withContext(Dispatchers.Main) {
+              appendChunk(chunk)
+              setLoadProgress(progress)
+            }
+          }
+          stamp = FileStamp(reader.totalBytes, lastModified, reader.checksum)
+        }
+      } catch (e: IOException) {
+        logger.e("Failed to read file: ${file.path}", e)
+        withContext(Dispatchers.Main) { showReadError(file) }
+        return@launch
+      }
+
+      val language = createLanguage()
+      val restored = stamp?.let { readCachedHighlight(file, it, language) }
+
+      withContext(Dispatchers.Main) {
+        editor.text.isUndoEnabled = true
+        setLanguage(language, restored)
+
+        val state = pendingState
+        pendingState = null
+        if (state != null && !applyState(state, stamp)) {
+          // The recorded edits do not lead to this text, load the file again without them
+          readFile(file)
+          return@withContext
+        }
+        // The streamed text is the saved state of the file
+        setModified(false)
+        diskStamp = stamp
+        publishContent()
+        setLoading(false)
+      }
+    }
+  }
+
+  /** Drops the part of [file] read before the failure, so it is neither edited nor saved. */
+  private fun showReadError(file: File) {
+    readFailed = true
+    pendingState = null
+    editor.setText("", null)
+    editor.text.isUndoEnabled = true
+    setModified(false)
+    setLoading(false)
+    showShortToast(context, context.getString(R.string.file_read_failed, file.name))
+  }
+
+  private suspend fun restoreJournaledEdits(file: File): Boolean {
+    val content = journal.recover() ?: return false
+    val language = createLanguage()
+    val stamp = readStamp(file)
+
+    withContext(Dispatchers.Main) {
+      editor.setText(content, null)
+      setLanguage(language)
+      // The recorded edits led to the file on disk, not to the recovered text
+      pendingState?.let { restoreSelection(it, restoreScroll = false) }
+      pendingState = null
+      setModified(true)
+      diskStamp = stamp
+      publishContent()
+      setLoading(false)
+      EventBus.getDefault().post(OnEditsRecoveredEvent(file))
+    }
+    return true
+  }
+
+  private fun wakeUp(state: HibernatedEditor) {
+    setLoading(true)
+    loadJob = editorScope.launch {
+      val text = state.text()
+      val language = createLanguage()
+
+      withContext(Dispatchers.Main) {
+        editor.setText(text, null)
+        editor.text.undoManager = state.undoManager
+        editHistory.addAll(state.edits)
+        setLanguage(language)
+        editor.setSelection(state.cursorLine, state.cursorColumn, false)
+        scrollTo(state.scrollX, state.scrollY)
+        diskStamp = state.diskStamp
+        publishContent()
+        setLoading(false)
+        // The file may have changed on disk while the view was released
+        onFileChangedOnDisk()
+      }
+    }
+  }
+
+  /** Shows the text of [document], which was loaded without a view, instead of reading the file. */
+  private fun showDocument(document: Document) {
     setLoading(true)
-    editorScope.launch(Dispatchers.IO) {
-      val content = FileIOUtils.readFile2String(file)
+    loadJob = editorScope.launch {
       val language = createLanguage()
+      val stamp = file?.let { withContext(Dispatchers.IO) { readStamp(it) } }
 
       withContext(Dispatchers.Main) {
-        editor.setText(content, null)
-        editor.setEditorLanguage(language)
+        if (!document.isLoaded) {
+          // Dropped in the meantime, a following view waits for the next content
+          if (!followDocument) readFile(file!!)
+          return@withContext
+        }
+        val dirty = document.isDirty
+        val content = if (attachedToDocument) document.content!! else document.attach()
+        attachedToDocument = true
+        editor.setText(content, true, null)
+        setLanguage(language)
+        setModified(dirty)
+        diskStamp = if (dirty) null else stamp
         setLoading(false)
       }
     }
   }
 
+  /** Hands the text of this view to its document, which keeps it when the view is released. */
+  private fun publishContent() {
+    val document = document ?: return
+    document.setContent(editor.text, modified)
+    if (!attachedToDocument) {
+      document.attach()
+      attachedToDocument = true
+    }
+  }
+
+  /** Stops sharing the text with the document. With [unload], the document drops it as well. */
+  private fun detachDocument(unload: Boolean) {
+    val document = document ?: return
+    if (attachedToDocument) {
+      attachedToDocument = false
+      document.detach()
+    }
+    if (unload && document.attachedViews == 0) document.unload()
+  }
+
+  /**
+   * Applies [state] from a previous session to the freshly loaded text. Its undo history is only
+   * rebuilt if the file is the one the state was taken from, as described by [stamp].
+   *
+   * @return false if the recorded edits did not match the text, which must then be reloaded.
+   */
+  private fun applyState(state: DocumentState, stamp: FileStamp?): Boolean {
+    val unchanged =
+      stamp != null && stamp.size == state.fileSize && stamp.lastModified == state.fileModified
+    if (unchanged && state.edits.isNotEmpty()) {
+      if (!EditHistory.replay(editor.text, state.edits)) return false
+      editHistory.addAll(state.edits)
+    }
+    restoreSelection(state, restoreScroll = unchanged)
+    return true
+  }
+
+  private fun restoreSelection(state: DocumentState, restoreScroll: Boolean) {
+    val content = editor.text
+    val startLine = state.selectionStartLine.coerceIn(0, content.lineCount - 1)
+    val endLine = state.selectionEndLine.coerceIn(startLine, content.lineCount - 1)
+    val startColumn = state.selectionStartColumn.coerceIn(0, content.getColumnCount(startLine))
+    val endColumn = state.selectionEndColumn.coerceIn(0, content.getColumnCount(endLine))
+
+    editor.setSelectionRegion(startLine, startColumn, endLine, endColumn, false)
+    if (restoreScroll) {
+      scrollTo(state.scrollX, state.scrollY)
+    } else editor.ensureSelectionVisible()
+  }
+
+  /**
+   * The views of a document share its cursor, which belongs to the content. Each view keeps its own
+   * selection by saving it when it loses the focus and setting it again when it gets it back.
+   */
+  private fun keepPaneSelection(hasFocus: Boolean) {
+    val document = document
+    if (document == null || !attachedToDocument || document.attachedViews <= 1) {
+      paneSelection = null
+      return
+    }
+
+    val cursor = editor.cursor
+    if (!hasFocus) {
+      paneSelection =
+        intArrayOf(cursor.leftLine, cursor.leftColumn, cursor.rightLine, cursor.rightColumn)
+      return
+    }
+    val selection = paneSelection ?: return
+    paneSelection = null
+
+    // The other view may have edited the lines since
+    val content = editor.text
+    val startLine = selection[0].coerceIn(0, content.lineCount - 1)
+    val endLine = selection[2].coerceIn(startLine, content.lineCount - 1)
+    val startColumn = selection[1].coerceIn(0, content.getColumnCount(startLine))
+    val endColumn = selection[3].coerceIn(0, content.getColumnCount(endLine))
+    editor.setSelectionRegion(startLine, startColumn, endLine, endColumn, false)
+  }
+
+  private fun scrollTo(x: Int, y: Int) {
+    editor.doOnLayout {
+      val startX = editor.offsetX
+      val startY = editor.offsetY
+      editor.scroller.forceFinished(true)
+      editor.scroller.startScroll(startX, startY, x - startX, y - startY, 0)
+      editor.invalidate()
+    }
+  }
+
+  private fun openLargeFile(file: File) {
+    // Only a window of the file is loaded, documents do not hold large files
+    detachDocument(unload = true)
+    setLoading(true)
+    loadJob = editorScope.launch(Dispatchers.IO) {
+      val mappedFile = try {
+        MappedTextFile(file)
+      } catch (e: IOException) {
+        logger.e("Failed to map file: ${file.path}", e)
+        withContext(Dispatchers.Main) { setLoading(false) }
+        return@launch
+      }
+
+      try {
+        mappedFile.buildIndex({ isActive }) { progress ->
+          post { setLoadProgress(progress) }
+        }
+        ensureActive()
+      } catch (e: CancellationException) {
+        mappedFile.close()
+        throw e
+      }
+
+      withContext(Dispatchers.Main) {
+        val viewer = LargeFileViewer(editor, mappedFile, editorScope)
+        largeFileViewer = viewer
+        binding.searcher.fileSearch = viewer::find
+        viewer.showWindow(0) { setLoading(false) }
+      }
+    }
+  }
+
+  private fun releaseLargeFileViewer() {
+    largeFileViewer?.release()
+    largeFileViewer = null
+    binding.searcher.fileSearch = null
+  }
+
+  private fun readStamp(file: File): FileStamp? {
+    return try {
+      FileStamp.of(file)
+    } catch (e: IOException) {
+      logger.e("Failed to read file: ${file.path}", e)
+      null
+    }
+  }
+
+  private fun watchFile(file: File) {
+    fileWatch?.close()
+    fileWatch = FileWatcher.watch(file) { post { onFileChangedOnDisk() } }
+  }
+
+  private fun onFileChangedOnDisk() {
+    // Tools usually write a file in several steps, only look at it once they are done
+    diskChangeJob?.cancel()
+    diskChangeJob = editorScope.launch(Dispatchers.IO) {
+      delay(DISK_CHANGE_DEBOUNCE)
+      checkDiskChange()
+    }
+  }
+
+  private suspend fun checkDiskChange() {
+    val file = file ?: return
+    // The stamp is unknown while loading, and the large file viewer keeps its own mapping
+    val stamp = diskStamp ?: return
+    if (!file.exists() || stamp.matchesMetadata(file)) return
+
+    val current = readStamp(file) ?: return
+    if (current.size == stamp.size && current.checksum == stamp.checksum) {
+      // Touched or rewritten with the same content, e.g. by our own save
+      diskStamp = current
+      return
+    }
+
+    withContext(Dispatchers.Main) {
+      if (diskStamp != stamp) return@withContext
+      if (modified) {
+        showDiskChangeDialog(file, current)
+      } else readFile(file)
+    }
+  }
+
+  private fun showDiskChangeDialog(file: File, current: FileStamp) {
+    diskChangeDialog?.dismiss()
+    diskChangeDialog =
+      MaterialAlertDialogBuilder(context)
+        .setTitle(R.string.file_changed_on_disk)
+        .setMessage(context.getString(R.string.file_changed_on_disk_message, file.name))
+        .setPositiveButton(R.string.file_reload) { _, _ -> readFile(file) }
+        .setNegativeButton(R.string.file_changed_on_disk_keep) { _, _ ->
+          // Only ask again if the file changes once more
+          diskStamp = current
+        }
+        .setOnDismissListener { diskChangeDialog = null }
+        .show()
+  }
+
+  private fun appendChunk(chunk: String) {
+    val content = editor.text
+    val lastLine = content.lineCount - 1
+    content.insert(lastLine, content.getColumnCount(lastLine), chunk)
+  }
+
   fun confirmReload() {
     if (modified) {
       MaterialAlertDialogBuilder(context)
@@ -111,6 +613,11 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
     } else readFile(file!!)
   }
 
+  /** Moves the cursor to the given zero-based [line] of the file. */
+  fun jumpToLine(line: Int) {
+    largeFileViewer?.jumpToLine(line) ?: editor.jumpToLine(line)
+  }
+
   fun undo() = editor.undo()
 
   fun redo() = editor.redo()
@@ -121,14 +628,25 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
 
   fun setModified(modified: Boolean) {
     editor.modified = modified
+    if (!modified && attachedToDocument) document?.markSaved()
   }
 
   fun updateFile(file: File, updateContent: Boolean) {
     this.file = file
+    journal.reset()
+    journal.close()
+    journal = EditJournal(file)
+    watchFile(file)
 
     if (updateContent) {
       readFile(file)
-    } else updateLanguage()
+    } else {
+      // The unsaved edits are journaled again, on top of the file under its new name
+      if (modified && !followDocument && largeFileViewer == null) journal.rebase(snapshotText())
+      diskStamp = null
+      editorScope.launch(Dispatchers.IO) { diskStamp = readStamp(file) }
+      updateLanguage()
+    }
   }
 
   fun updateLanguage() {
@@ -137,23 +655,153 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
       val language = createLanguage()
 
       withContext(Dispatchers.Main) {
-        editor.setEditorLanguage(language)
+        setLanguage(language)
         setLoading(false)
       }
     }
   }
 
+  /**
+   * Captures what is needed to show this editor again and releases the view. Must only be called
+   * when [canHibernate] is true.
+   */
+  fun hibernate(): HibernatedEditor {
+    val cursor = editor.cursor
+    val state =
+      HibernatedEditor(
+        file = file!!,
+        text = snapshotText(),
+        cursorLine = cursor.leftLine,
+        cursorColumn = cursor.leftColumn,
+        scrollX = editor.offsetX,
+        scrollY = editor.offsetY,
+        undoManager = editor.text.undoManager,
+        edits = editHistory.toList(),
+        diskStamp = diskStamp,
+      )
+    // The text is unmodified and kept compressed in the state, the document does not need it
+    detachDocument(unload = true)
+    release()
+    return state
+  }
+
+  /**
+   * Restores the cursor, the scroll position and the undo history of a previous session once the
+   * file is loaded.
+   */
+  fun restoreState(state: DocumentState) {
+    if (isLoading) {
+      pendingState = state
+    } else restoreSelection(state, restoreScroll = false)
+  }
+
+  /** Captures the state of the document for the session, `null` while it is not fully loaded. */
+  fun captureState(): DocumentState? {
+    val file = file ?: return null
+    if (isLoading || readFailed || largeFileViewer != null) return null
+
+    val stamp = diskStamp
+    val cursor = editor.cursor
+    return DocumentState(
+      path = file.path,
+      fileSize = stamp?.size ?: -1L,
+      fileModified = stamp?.lastModified ?: -1L,
+      selectionStartLine = cursor.leftLine,
+      selectionStartColumn = cursor.leftColumn,
+      selectionEndLine = cursor.rightLine,
+      selectionEndColumn = cursor.rightColumn,
+      scrollX = editor.offsetX,
+      scrollY = editor.offsetY,
+      scopeName = scopeName,
+      // Only the edits of a saved document lead to the file on disk
+      edits = if (modified || stamp == null) emptyList() else editHistory.toList(),
+    )
+  }
+
   fun release() {
     EventBus.getDefault().unregister(this)
+    fileWatch?.close()
+    diskChangeDialog?.dismiss()
+    // The journal of the file belongs to the view that loaded it
+    if (!followDocument) journal.reset()
+    journal.close()
+    if (followDocument) document?.removeContentReplacedListener(onDocumentReplaced)
+    releaseLargeFileViewer()
     editorScope.cancelIfActive("Editor has been released")
+    if (document?.content === editor.text) {
+      detachDocument(unload = false)
+      // The document keeps the text, it must not keep this view as a listener
+      editor.setText("", false, null)
+    }
     editor.release()
   }
 
   suspend fun saveFile(): Boolean {
-    return if (modified && FileIOUtils.writeFileFromString(file, editor.text.toString())) {
-      setModified(false)
+    if (readFailed) return false
+    val viewer = largeFileViewer
+    if (viewer != null) {
+      if (!modified) return false
+      return try {
+        viewer.saveWindow()
+        setModified(false)
+        true
+      } catch (e: IOException) {
+        logger.e("Failed to save file: ${viewer.mappedFile.file.path}", e)
+        false
+      }
+    }
+
+    val file = file
+    if (!modified || file == null) return false
+
+    // The text can only be read on the main thread, a snapshot of it from anywhere
+    val (content, snapshot, fingerprint) =
+      withContext(Dispatchers.Main.immediate) {
+        Triple(editor.text, snapshotText(), editor.textFingerprint)
+      }
+    return try {
+      val stats =
+        withContext(Dispatchers.IO) {
+          contentWriter.write(snapshot, file).also {
+            // Recognise the change notification of our own write
+            diskStamp = FileStamp(it.bytes, file.lastModified(), it.checksum)
+          }
+        }
+      logger.i(
+        "Saved %s: %d bytes in %d ms (%d KiB/s)",
+        file.name,
+        stats.bytes,
+        stats.durationMillis,
+        stats.bytesPerSecond / 1024,
+      )
+      withContext(Dispatchers.Main.immediate) { markSaved(content, snapshot, fingerprint) }
       true
-    } else false
+    } catch (e: IOException) {
+      logger.e("Failed to save file: ${file.path}", e)
+      false
+    }
+  }
+
+  /** Snapshot of the text, in O(1) if it is the content of the [document]. */
+  private fun snapshotText(): TextSnapshot {
+    val document = document
+    return if (attachedToDocument && document != null) {
+      document.snapshot()
+    } else TextSnapshot.copyOf(editor.text)
+  }
+
+  /**
+   * Marks the text written from [snapshot] as saved. Edits made during the write keep the editor
+   * modified, and the journal keeps them on top of the saved file.
+   */
+  private fun markSaved(content: Content, snapshot: TextSnapshot, fingerprint: Long) {
+    // The text was replaced during the write, e.g. reloaded, its load set its saved state
+    if (editor.text !== content) return
+
+    editor.markSaved(fingerprint)
+    if (attachedToDocument) document?.markSaved(snapshot.version)
+    if (followDocument) return
+    if (modified) journal.rebase(snapshotText()) else journal.reset()
   }
 
   fun beginSearchMode() {
@@ -173,6 +821,13 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
       PREF_EDITOR_WORDWRAP_KEY -> updateWordWrap()
       PREF_EDITOR_LINENUMBER_KEY -> updateLineNumbers()
       PREF_EDITOR_USETAB_KEY -> updateEditorUseTab()
+      PREF_EDITOR_TREE_SITTER_KEY,
+      PREF_EDITOR_REDUCED_MODE_SIZE_KEY,
+      PREF_EDITOR_REDUCED_MODE_LINES_KEY,
+      PREF_EDITOR_MINIMAL_MODE_SIZE_KEY,
+      PREF_EDITOR_MINIMAL_MODE_LINES_KEY,
+      PREF_EDITOR_MINIMAL_MODE_LINE_LENGTH_KEY ->
+        if (!isLoading && largeFileViewer == null) updateLanguage()
       PREF_EDITOR_DELETELINEONBACKSPACE_KEY -> updateDeleteEmptyLineFast()
       PREF_EDITOR_DELETETABONBACKSPACE_KEY -> updateDeleteTabs()
     }
@@ -192,8 +847,9 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
 
   private fun updateEditorColorScheme() {
     ThemeRegistry.getInstance().setTheme(editorColorScheme)
-    // Required to update colors correctly :-)
-    editor.setText(editor.text.toString())
+    editor.applyThemeChange()
+    // Tree-sitter languages take their colors from the theme when created
+    if (editor.editorLanguage.isTreeSitter) updateLanguage()
   }
 
   private fun updateEditorFont() {
@@ -207,24 +863,25 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
   }
 
   private fun updateEditorIndent() {
-    (editor.editorLanguage as? TextMateLanguage)?.tabSize = editorIndent
+    editor.editorLanguage.textMateLanguage?.tabSize = editorIndent
     editor.tabWidth = editorIndent
   }
 
   private fun updateEditorUseTab() {
-    (editor.editorLanguage as? TextMateLanguage)?.useTab(editorUseTab)
+    if (editor.editorLanguage.isTreeSitter) updateLanguage()
+    editor.editorLanguage.textMateLanguage?.useTab(editorUseTab)
   }
 
   private fun updateStickyScroll() {
-    editor.props.stickyScroll = editorStickyScroll
+    editor.props.stickyScroll = editorStickyScroll && performanceMode.layoutFeatures
   }
 
   private fun updateFontLigatures() {
-    editor.isLigatureEnabled = editorFontLigatures
+    editor.isLigatureEnabled = editorFontLigatures && performanceMode.layoutFeatures
   }
 
   private fun updateWordWrap() {
-    editor.isWordwrap = editorWordWrap
+    editor.isWordwrap = editorWordWrap && performanceMode.layoutFeatures
   }
 
   private fun updateLineNumbers() {
@@ -240,8 +897,20 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
   }
 
   private fun setLoading(loading: Boolean) {
-    binding.progress.isVisible = loading
-    editor.isEditable = !loading
+    isLoading = loading
+    onLoadingChanged?.invoke(loading)
+    binding.progress.apply {
+      if (loading) isIndeterminate = true
+      isVisible = loading
+    }
+    editor.isEditable = !loading && !readFailed
+  }
+
+  private fun setLoadProgress(progress: Int) {
+    binding.progress.apply {
+      if (isIndeterminate) isIndeterminate = false
+      setProgressCompat(progress, true)
+    }
   }
 
   private fun createColorScheme(): EditorColorScheme {
@@ -252,14 +921,171 @@ class CodeEditorView(context: Context, file: File) : LinearLayout(context) {
     }
   }
 
-  private suspend fun createLanguage(): Language {
-    val scopeName: String? = GrammarProvider.findScopeByFileExtension(file?.extension)
+  /**
+   * Applies [language] to the editor, as allowed by the [performanceMode]. Long texts and texts
+   * with reduced features are highlighted visible lines first, rather than from the first line on,
+   * see [ViewportHighlightLanguage]. They start with the [restored] spans of an earlier session,
+   * and their spans are stored for the next one once complete.
+   */
+  private fun setLanguage(language: Language, restored: CachedHighlight? = null) {
+    updatePerformanceMode()
+    val grammar = scopeName?.let { GrammarRegistry.getInstance().findGrammar(it) }
+    val editorLanguage =
+      when {
+        !performanceMode.highlighting -> {
+          // Too large to be highlighted, the text is shown plain
+          language.destroy()
+          EmptyLanguage()
+        }
+        language is TextMateLanguage &&
+          grammar != null &&
+          (editor.text.lineCount >= VIEWPORT_HIGHLIGHT_LINES ||
+            performanceMode != PerformanceMode.FULL) ->
+          ViewportHighlightLanguage(language, grammar, restored)
+        // Tree-sitter only reparses the edited parts, it keeps its own analyzer in reduced mode
+        else -> language
+      }
+    editor.setEditorLanguage(editorLanguage)
 
-    return if (scopeName != null) {
-      TextMateLanguage.create(scopeName, GrammarRegistry.getInstance(), true).apply {
-        tabSize = editorIndent
-        useTab(editorUseTab)
+    highlightStoreJob?.cancel()
+    if (editorLanguage is ViewportHighlightLanguage) {
+      editor.post { updateHighlightViewport() }
+      storeHighlightWhenComplete(editorLanguage)
+    }
+  }
+
+  private fun readCachedHighlight(
+    file: File,
+    stamp: FileStamp,
+    language: Language,
+  ): CachedHighlight? {
+    // Only TextMate texts highlighted visible lines first have their spans stored
+    if (language !is TextMateLanguage || GrammarProvider.grammarVersion.isEmpty()) return null
+    return highlightCache.read(file, stamp, GrammarProvider.grammarVersion, currentThemeName())
+  }
+
+  /**
+   * Reports the [HighlightMetrics] of [language] once its text is fully highlighted, and stores its
+   * spans if the text is saved on disk.
+   */
+  private fun storeHighlightWhenComplete(language: ViewportHighlightLanguage) {
+    highlightStoreJob =
+      editorScope.launch(Dispatchers.Main) {
+        val metrics = language.metrics.first { it.isComplete }
+        logger.i(
+          "Highlighted %s: %d lines, first viewport in %s ms, %d lines restored",
+          file?.name ?: "",
+          editor.text.lineCount,
+          metrics.firstViewportMillis ?: "-",
+          metrics.restoredLines,
+        )
+        val file = file
+        val stamp = diskStamp
+        // Every line came from the cache, it is still up to date
+        if (metrics.restoredLines >= editor.text.lineCount) return@launch
+        if (file == null || stamp == null || modified || GrammarProvider.grammarVersion.isEmpty()) {
+          return@launch
+        }
+        if (editor.editorLanguage !== language) {
+          return@launch
+        }
+
+        val highlight = language.exportHighlight() ?: return@launch
+        val theme = currentThemeName()
+        withContext(Dispatchers.IO) {
+          highlightCache.write(file, stamp, GrammarProvider.grammarVersion, theme, highlight)
+        }
       }
-    } else EmptyLanguage()
+  }
+
+  private fun currentThemeName(): String {
+    return ThemeRegistry.getInstance().currentThemeModel.name
+  }
+
+  /**
+   * Chooses the [performanceMode] of the text and applies it. A [lengthHint], in chars, stands for
+   * the length of a text still being loaded.
+   */
+  private fun updatePerformanceMode(lengthHint: Long = 0) {
+    val mode =
+      performanceOverride
+        ?: createPerformancePolicy().modeFor(LineLengths.of(editor.text), lengthHint)
+    // A new text comes with a new undo history, its depth is set every time
+    editor.text.undoManager.setMaxUndoStackSize(mode.undoDepth)
+    if (mode == performanceMode) return
+
+    performanceMode = mode
+    updateWordWrap()
+    updateStickyScroll()
+    updateFontLigatures()
+    onPerformanceModeChanged?.invoke(mode)
+  }
+
+  private fun createPerformancePolicy(): PerformancePolicy {
+    return PerformancePolicy(
+      PerformanceThresholds(
+        reducedSize = editorReducedModeSize,
+        reducedLines = editorReducedModeLines,
+        minimalSize = editorMinimalModeSize,
+        minimalLines = editorMinimalModeLines,
+        minimalLineLength = editorMinimalModeLineLength,
+      )
+    )
+  }
+
+  private fun updateHighlightViewport() {
+    val language = editor.editorLanguage as? ViewportHighlightLanguage ?: return
+    language.setViewport(editor.firstVisibleLine, editor.lastVisibleLine)
+  }
+
+  private suspend fun createLanguage(): Language {
+    return try {
+      createLanguage(findScopeName())
+    } catch (e: CancellationException) {
+      throw e
+    } catch (e: Exception) {
+      // The grammar failed to load, the text is still shown, as plain text
+      logger.e("Failed to create the language of ${file?.path}", e)
+      EmptyLanguage()
+    }
+  }
+
+  private fun createLanguage(scopeName: String?): Language {
+    if (scopeName == null) return EmptyLanguage()
+    if (editorTreeSitter && TreeSitterLanguages.isSupported(scopeName)) {
+      // TextMate stays the fallback of a tree-sitter language that fails to load
+      TreeSitterLanguages.create(scopeName, editorUseTab)?.let { return it }
+    }
+    return TextMateLanguage.create(scopeName, GrammarRegistry.getInstance(), true).apply {
+      tabSize = editorIndent
+      useTab(editorUseTab)
+    }
+  }
+
+  /**
+   * Finds the scope of the file and registers its grammar. A scope remembered by the session or by
+   * the document is only kept if a grammar still has it, its grammar may not be registered yet.
+   * The scope found first after the file was opened is counted for the warm up of the grammars,
+   * not the ones found when the language is created again, e.g. for a new theme.
+   */
+  private suspend fun findScopeName(): String? {
+    val knownScopeName = pendingState?.scopeName ?: document?.scopeName
+    val scopeName: String? =
+      if (knownScopeName != null && GrammarProvider.registerGrammarByScope(knownScopeName)) {
+        knownScopeName
+      } else file?.let { GrammarProvider.findScopeForFile(it) }
+    this.scopeName = scopeName
+    document?.scopeName = scopeName
+    if (countOpen) {
+      countOpen = false
+      scopeName?.let { GrammarProvider.recordOpen(it) }
+    }
+    return scopeName
+  }
+
+  companion object {
+    private const val DISK_CHANGE_DEBOUNCE = 500L
+    /** Number of lines from which a text is highlighted visible lines first. */
+    private const val VIEWPORT_HIGHLIGHT_LINES = 20_000
   }
 }
@@ -0,0 +1,101 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor
+
+import com.teixeira.vcspace.editor.document.TextSnapshot
+import com.teixeira.vcspace.editor.io.FileStamp
+import com.teixeira.vcspace.editor.session.RecordedEdit
+import io.github.rosemoe.sora.text.UndoManager
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.Inflater
+
+/**
+ * What is left of a [CodeEditorView] released by the [TabHibernator]. Its text is deflated by
+ * [compress].
+ */
+class HibernatedEditor(
+  val file: File,
+  text: TextSnapshot,
+  val cursorLine: Int,
+  val cursorColumn: Int,
+  val scrollX: Int,
+  val scrollY: Int,
+  val undoManager: UndoManager,
+  val edits: List<RecordedEdit>,
+  val diskStamp: FileStamp?,
+) {
+
+  val length: Int = text.length
+
+  @Volatile private var plainText: TextSnapshot? = text
+  @Volatile private var compressedText: ByteArray? = null
+  private var byteCount = 0
+
+  /** Must be called from a background thread. */
+  @Synchronized
+  fun compress() {
+    val text = plainText ?: return
+    val deflater = Deflater(Deflater.BEST_SPEED)
+    try {
+      val output = ByteArrayOutputStream(text.length / 4 + 64)
+      var bytes = 0
+      // Line by line, so the text is never held as a single string
+      DeflaterOutputStream(output, deflater, BUFFER_SIZE).use { stream ->
+        text.forEachLine { line ->
+          val lineBytes = line.toByteArray(Charsets.UTF_8)
+          stream.write(lineBytes)
+          bytes += lineBytes.size
+        }
+      }
+
+      byteCount = bytes
+      compressedText = output.toByteArray()
+      // Published after the compressed text, so readers always find one of both
+      plainText = null
+    } finally {
+      deflater.end()
+    }
+  }
+
+  fun text(): String {
+    plainText?.let {
+      return it.toString()
+    }
+
+    synchronized(this) {
+      val compressed = compressedText!!
+      val bytes = ByteArray(byteCount)
+      val inflater = Inflater()
+      try {
+        inflater.setInput(compressed)
+        var offset = 0
+        while (offset < bytes.size && !inflater.finished()) {
+          offset += inflater.inflate(bytes, offset, bytes.size - offset)
+        }
+      } finally {
+        inflater.end()
+      }
+      return String(bytes, Charsets.UTF_8)
+    }
+  }
+
+  companion object {
+    private const val BUFFER_SIZE = 64 * 1024
+  }
+}
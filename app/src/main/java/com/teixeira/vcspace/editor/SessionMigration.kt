@@ -0,0 +1,40 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor
+
+import com.google.gson.Gson
+import com.google.gson.JsonParseException
+import com.teixeira.vcspace.editor.session.SessionStore
+import com.teixeira.vcspace.models.FileHistory
+import java.io.File
+
+/**
+ * Reads the stored session. If there is none, falls back to the list of paths that older versions
+ * wrote to [legacyFile] as JSON, and deletes it. Must be called from a background thread.
+ */
+fun SessionStore.readOrMigrate(legacyFile: File): SessionStore.Session {
+  val session = read()
+  if (session.paths.isNotEmpty() || !legacyFile.exists()) return session
+
+  val paths =
+    try {
+      Gson().fromJson(legacyFile.readText(), FileHistory::class.java)?.lastOpenedFilesPath
+    } catch (e: JsonParseException) {
+      null
+    } ?: emptyList()
+  legacyFile.delete()
+  return SessionStore.Session(paths, paths.size - 1, emptyMap())
+}
@@ -0,0 +1,97 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+
+/**
+ * Hibernates the least recently used background editors beyond [maxLiveEditors] editors or
+ * [maxLiveChars] chars. Must be used from the main thread.
+ */
+class TabHibernator(
+  private val scope: CoroutineScope,
+  private val maxLiveEditors: () -> Int,
+  private val maxLiveChars: () -> Long,
+) {
+
+  /** Paths of the opened tabs, least recently selected first. */
+  private val lastUse = LinkedHashSet<String>()
+  private val hibernated = HashMap<String, HibernatedEditor>()
+
+  fun onSelected(path: String) {
+    lastUse.remove(path)
+    lastUse.add(path)
+  }
+
+  fun wakeUp(path: String): HibernatedEditor? {
+    return hibernated.remove(path)
+  }
+
+  /** Forgets the tab of [path], e.g. because it was closed. */
+  fun forget(path: String) {
+    lastUse.remove(path)
+    hibernated.remove(path)
+  }
+
+  fun forgetAll() {
+    lastUse.clear()
+    hibernated.clear()
+  }
+
+  /**
+   * Hibernates editors of [editors] until the budget is met, leaving room for the one of
+   * [selectedPath], and returns their paths.
+   */
+  fun trim(
+    editors: MutableMap<String, CodeEditorView>,
+    selectedPath: String?,
+    canHibernate: (CodeEditorView) -> Boolean,
+  ): List<String> {
+    var liveCount = editors.size
+    if (selectedPath != null && selectedPath !in editors) liveCount++
+    var liveChars = editors.values.sumOf { it.editor.text.length.toLong() }
+
+    val maxCount = maxLiveEditors()
+    val maxChars = maxLiveChars()
+    if (liveCount <= maxCount && liveChars <= maxChars) return emptyList()
+
+    val order = HashMap<String, Int>(lastUse.size)
+    lastUse.forEachIndexed { index, path -> order[path] = index }
+    // Editors that were never selected are the least recently used ones
+    val candidates =
+      editors.keys.filter { it != selectedPath }.sortedBy { order[it] ?: -1 }
+
+    val hibernatedPaths = mutableListOf<String>()
+    for (path in candidates) {
+      if (liveCount <= maxCount && liveChars <= maxChars) break
+
+      val view = editors.getValue(path)
+      if (!canHibernate(view)) continue
+
+      val state = view.hibernate()
+      editors.remove(path)
+      hibernated[path] = state
+      hibernatedPaths.add(path)
+
+      liveCount--
+      liveChars -= state.length
+      scope.launch(Dispatchers.Default) { state.compress() }
+    }
+    return hibernatedPaths
+  }
+}
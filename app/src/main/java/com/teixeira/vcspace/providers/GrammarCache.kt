@@ -0,0 +1,192 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.providers
+
+import android.content.Context
+import android.util.Xml
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
+import com.google.gson.stream.JsonWriter
+import com.teixeira.vcspace.editor.io.writeAtomically
+import com.teixeira.vcspace.utils.Logger
+import io.github.rosemoe.sora.langs.textmate.registry.FileProviderRegistry
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.Reader
+import java.io.Writer
+import java.nio.channels.Channels
+import org.xmlpull.v1.XmlPullParser
+import org.xmlpull.v1.XmlPullParserException
+
+/**
+ * Grammar assets converted to compact JSON, cheaper to parse than the assets. The cache is keyed by
+ * the installed APK, as the assets only change with it.
+ */
+class GrammarCache(private val dir: File) {
+
+  @Volatile private var pruned = false
+
+  /** Identifies the grammars in this cache, it changes with any of them. */
+  val version: String
+    get() = dir.name
+
+  /**
+   * Returns the cached file of the grammar at [assetPath], `null` if the asset cannot be converted.
+   * Must be called from a background thread.
+   */
+  fun getGrammarFile(assetPath: String): File? {
+    val file = File(dir, assetPath.replace('/', '_').substringBeforeLast('.') + ".json")
+    if (file.exists()) return file
+
+    val input = FileProviderRegistry.getInstance().tryGetInputStream(assetPath) ?: return null
+    return try {
+      pruneOldCaches()
+      dir.mkdirs()
+      file.writeAtomically { channel ->
+        val writer = Channels.newWriter(channel, Charsets.UTF_8.newEncoder(), BUFFER_SIZE)
+        input.use { convert(it, assetPath, writer) }
+      }
+      file
+    } catch (e: IOException) {
+      log.e("Failed to cache grammar: $assetPath", e)
+      null
+    } catch (e: XmlPullParserException) {
+      log.e("Failed to convert grammar: $assetPath", e)
+      null
+    }
+  }
+
+  private fun convert(input: InputStream, assetPath: String, output: Writer) {
+    // Not closed, the channel of the output must stay open until it is synced
+    val writer = JsonWriter(output)
+    if (assetPath.endsWith(".json")) {
+      JsonReader(input.bufferedReader()).use { reader ->
+        reader.isLenient = true
+        copyJson(reader, writer)
+      }
+    } else {
+      copyPlist(input.bufferedReader(), writer)
+    }
+    writer.flush()
+  }
+
+  private fun copyJson(reader: JsonReader, writer: JsonWriter) {
+    when (reader.peek()) {
+      JsonToken.BEGIN_OBJECT -> {
+        reader.beginObject()
+        writer.beginObject()
+        while (reader.hasNext()) {
+          val name = reader.nextName()
+          // Rules may be named like these keys, so only plain strings are dropped
+          if (name in IGNORED_KEYS && reader.peek() == JsonToken.STRING) {
+            reader.skipValue()
+            continue
+          }
+          writer.name(name)
+          copyJson(reader, writer)
+        }
+        reader.endObject()
+        writer.endObject()
+      }
+      JsonToken.BEGIN_ARRAY -> {
+        reader.beginArray()
+        writer.beginArray()
+        while (reader.hasNext()) copyJson(reader, writer)
+        reader.endArray()
+        writer.endArray()
+      }
+      JsonToken.STRING -> writer.value(reader.nextString())
+      JsonToken.NUMBER -> writer.jsonValue(reader.nextString())
+      JsonToken.BOOLEAN -> writer.value(reader.nextBoolean())
+      JsonToken.NULL -> {
+        reader.nextNull()
+        writer.nullValue()
+      }
+      else -> throw IOException("Unexpected token ${reader.peek()} at ${reader.path}")
+    }
+  }
+
+  private fun copyPlist(input: Reader, writer: JsonWriter) {
+    val parser = Xml.newPullParser()
+    parser.setInput(input)
+    while (parser.next() != XmlPullParser.END_DOCUMENT) {
+      if (parser.eventType == XmlPullParser.START_TAG && parser.name != "plist") {
+        copyPlistValue(parser, writer)
+        return
+      }
+    }
+    throw IOException("Empty property list")
+  }
+
+  /** Copies the value whose start tag the [parser] is at, and leaves it at its end tag. */
+  private fun copyPlistValue(parser: XmlPullParser, writer: JsonWriter) {
+    when (val tag = parser.name) {
+      "dict" -> {
+        writer.beginObject()
+        while (parser.nextTag() == XmlPullParser.START_TAG) {
+          if (parser.name != "key") throw IOException("Expected key, found ${parser.name}")
+          val name = parser.nextText()
+          parser.nextTag()
+          if (name in IGNORED_KEYS && parser.name == "string") {
+            parser.nextText()
+            continue
+          }
+          writer.name(name)
+          copyPlistValue(parser, writer)
+        }
+        writer.endObject()
+      }
+      "array" -> {
+        writer.beginArray()
+        while (parser.nextTag() == XmlPullParser.START_TAG) copyPlistValue(parser, writer)
+        writer.endArray()
+      }
+      "string",
+      "data",
+      "date" -> writer.value(parser.nextText())
+      "integer",
+      "real" -> writer.jsonValue(parser.nextText().trim())
+      "true",
+      "false" -> {
+        writer.value(tag == "true")
+        parser.nextTag()
+      }
+      else -> throw IOException("Unexpected tag $tag")
+    }
+  }
+
+  private fun pruneOldCaches() {
+    if (pruned) return
+    pruned = true
+    dir.parentFile?.listFiles()?.forEach { if (it != dir) it.deleteRecursively() }
+  }
+
+  companion object {
+    /** Version of the format of the cached grammars, to be increased when [convert] changes. */
+    private const val FORMAT_VERSION = 1
+    private const val BUFFER_SIZE = 16 * 1024
+
+    private val IGNORED_KEYS = setOf("comment", "information_for_contributors", "\$schema")
+    private val log = Logger.newInstance("GrammarCache")
+
+    fun create(context: Context): GrammarCache {
+      val apk = File(context.applicationInfo.sourceDir)
+      val key = "v$FORMAT_VERSION-${apk.length()}-${apk.lastModified()}"
+      return GrammarCache(File(File(context.cacheDir, "grammars"), key))
+    }
+  }
+}
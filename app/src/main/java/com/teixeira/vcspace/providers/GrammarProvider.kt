@@ -18,25 +18,94 @@ package com.teixeira.vcspace.providers
 import android.content.Context
 import com.google.gson.Gson
 import com.google.gson.reflect.TypeToken
+import com.teixeira.vcspace.utils.Logger
 import io.github.rosemoe.sora.langs.textmate.registry.FileProviderRegistry
 import io.github.rosemoe.sora.langs.textmate.registry.GrammarRegistry
 import io.github.rosemoe.sora.langs.textmate.registry.model.DefaultGrammarDefinition
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
 import java.nio.charset.Charset
+import java.util.concurrent.Executors
+import java.util.regex.PatternSyntaxException
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
 import org.eclipse.tm4e.core.registry.IGrammarSource
 
 /**
  * Class to register and provide TextMate grammars
  *
+ * Grammars are indexed by extension, file name, name, scope and interpreter when they are loaded,
+ * so lookups do not scan the grammar list. Files that cannot be recognized by their name are
+ * recognized by their first bytes, see [findGrammarByContent].
+ *
  * @author Felipe Teixeira
  */
 object GrammarProvider {
 
+  private const val SNIFF_SIZE = 512
+  private const val SNIFF_LINES = 5
+  private const val WARM_UP_DELAY = 3000L
+  private const val WARM_UP_COUNT = 3
+
+  private val log = Logger.newInstance("GrammarProvider")
+
   private val grammarRegistry = GrammarRegistry.getInstance()
   private var _grammars: List<GrammarModel> = mutableListOf()
+  private var cache: GrammarCache? = null
+  private var usage: GrammarUsage? = null
+
+  private var byExtension = emptyMap<String, GrammarModel>()
+  private var byFileName = emptyMap<String, GrammarModel>()
+  private var byName = emptyMap<String, GrammarModel>()
+  private var byScope = emptyMap<String, GrammarModel>()
+  private var byInterpreter = emptyMap<String, GrammarModel>()
+  private var firstLinePatterns = emptyList<Pair<Regex, GrammarModel>>()
+  /** Grammars embedded by each grammar, by name, from the `embeddedLanguages` of grammars.json. */
+  private var embeds = emptyMap<String, List<GrammarModel>>()
+
+  /** Serializes the loads into the registry, which is not meant to be filled concurrently. */
+  private val registrationMutex = Mutex()
+  /** Number of registrations requested by opened files, which the warm up gives way to. */
+  private val pendingRegistrations = MutableStateFlow(0)
+
+  private val warmUpScope =
+    CoroutineScope(
+      SupervisorJob() +
+        Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "GrammarWarmUp").apply {
+              priority = Thread.MIN_PRIORITY
+              isDaemon = true
+            }
+          }
+          .asCoroutineDispatcher()
+    )
+  private var warmUpJob: Job? = null
+
+  private val shebangRegex = Regex("""^#!\s*(\S+)(?:\s+(?:-\S+\s+)*(\S+))?""")
+  private val vimModelineRegex = Regex("""\bvim?:.*\b(?:ft|filetype|syntax)=([\w+-]+)""")
+  private val emacsModelineRegex = Regex("""-\*-.*?\bmode:\s*([\w+-]+)|-\*-\s*([\w+-]+)\s*-\*-""")
+  private val interpreterVersionRegex = Regex("""[\d.]+$""")
 
   val grammars: List<GrammarModel>
     get() = _grammars
 
+  /** Version of the grammars, it changes with any of them; empty before [initialize]. */
+  val grammarVersion: String
+    get() = cache?.version ?: ""
+
   fun initialize(context: Context) {
     if (_grammars.isNotEmpty()) {
       return
@@ -45,6 +114,103 @@ object GrammarProvider {
     val grammarsJson =
       context.assets.open("editor/textmate/grammars.json").bufferedReader().use { it.readText() }
     _grammars = Gson().fromJson(grammarsJson, object : TypeToken<List<GrammarModel>>() {})
+    cache = GrammarCache.create(context)
+    usage = GrammarUsage.create(context)
+    buildIndexes(_grammars)
+  }
+
+  private fun buildIndexes(grammars: List<GrammarModel>) {
+    val byExtension = HashMap<String, GrammarModel>()
+    val byFileName = HashMap<String, GrammarModel>()
+    val byInterpreter = HashMap<String, GrammarModel>()
+    val firstLinePatterns = mutableListOf<Pair<Regex, GrammarModel>>()
+
+    // The first grammar declaring a key wins, as with the former linear search
+    for (grammar in grammars) {
+      grammar.fileExtensions?.forEach { byExtension.putIfAbsent(it.lowercase(), grammar) }
+      grammar.fileNames?.forEach { byFileName.putIfAbsent(it, grammar) }
+      grammar.interpreters?.forEach { byInterpreter.putIfAbsent(it, grammar) }
+      grammar.firstLine?.let { pattern ->
+        try {
+          firstLinePatterns.add(Regex(pattern) to grammar)
+        } catch (e: PatternSyntaxException) {
+          // Skip the pattern, the grammar can still be found by its extensions
+        }
+      }
+    }
+
+    val byName = grammars.reversed().associateBy { it.name }
+
+    this.byExtension = byExtension
+    this.byFileName = byFileName
+    this.byName = byName
+    this.byScope = grammars.reversed().associateBy { it.scopeName }
+    this.byInterpreter = byInterpreter
+    this.firstLinePatterns = firstLinePatterns
+    this.embeds =
+      grammars.associate { grammar ->
+        grammar.name to grammar.embeddedLanguages?.values?.mapNotNull { byName[it] }.orEmpty()
+      }
+  }
+
+  /**
+   * Returns [grammar] and the grammars it embeds, transitively, in the order they must be
+   * registered: embedded grammars come before the grammars that embed them.
+   */
+  private fun dependenciesOf(grammar: GrammarModel): List<GrammarModel> {
+    val visited = HashSet<String>()
+    val order = mutableListOf<GrammarModel>()
+
+    fun visit(grammar: GrammarModel) {
+      if (!visited.add(grammar.name)) return
+      embeds[grammar.name]?.forEach { visit(it) }
+      order.add(grammar)
+    }
+
+    visit(grammar)
+    return order
+  }
+
+  /**
+   * Registers the grammars of the languages opened most often, and the grammars they embed, in a
+   * low priority background job, so opening those files does not pay for it. Registrations of
+   * opened files go first, the warm up waits until none is pending. See [cancelWarmUp].
+   */
+  fun warmUp(delayMillis: Long = WARM_UP_DELAY) {
+    val usage = usage ?: return
+    warmUpJob?.cancel()
+    warmUpJob =
+      warmUpScope.launch {
+        delay(delayMillis)
+        val startTime = System.nanoTime()
+        val grammars = usage.mostUsed(WARM_UP_COUNT).mapNotNull { byName[it] }
+        for (grammar in grammars) {
+          for (dependency in dependenciesOf(grammar)) {
+            pendingRegistrations.first { it == 0 }
+            try {
+              loadGrammar(dependency)
+            } catch (e: CancellationException) {
+              throw e
+            } catch (e: Exception) {
+              // Opening a file of this language will report the error
+              log.e("Failed to warm up grammar: ${dependency.name}", e)
+              return@launch
+            }
+          }
+        }
+        if (grammars.isNotEmpty()) {
+          log.d(
+            "Warmed up %s in %d ms",
+            grammars.joinToString { it.name },
+            (System.nanoTime() - startTime) / 1_000_000,
+          )
+        }
+      }
+  }
+
+  fun cancelWarmUp() {
+    warmUpJob?.cancel()
+    warmUpJob = null
   }
 
   suspend fun findScopeByFileExtension(extension: String?): String? {
@@ -55,52 +221,160 @@ object GrammarProvider {
     return grammar.scopeName
   }
 
+  /**
+   * Finds and registers the grammar of [file], by its name, then by its extension, then by its
+   * content. Only the first bytes of the file are read, and only if its name is not enough.
+   */
+  suspend fun findScopeForFile(file: File): String? {
+    val grammar =
+      byFileName[file.name]
+        ?: findGrammarByFileExtension(file.extension)
+        ?: withContext(Dispatchers.IO) { findGrammarByContent(file) }
+        ?: return null
+    if (grammarRegistry.findGrammar(grammar.scopeName) == null) {
+      registerGrammar(grammar)
+    }
+    return grammar.scopeName
+  }
+
+  /** Counts an opened file of the language of [scopeName], for the [warmUp] of the next runs. */
+  fun recordOpen(scopeName: String) {
+    val grammar = byScope[scopeName] ?: return
+    usage?.recordOpen(grammar.name)
+  }
+
   suspend fun registerGrammarByFileExtension(extension: String?) {
     val grammar = findGrammarByFileExtension(extension) ?: return
     registerGrammar(grammar)
   }
 
+  /**
+   * Registers the grammar of [scopeName], e.g. a scope remembered by the last session.
+   *
+   * @return false if no grammar has this scope, e.g. after an update of the grammars.
+   */
+  suspend fun registerGrammarByScope(scopeName: String): Boolean {
+    val grammar = byScope[scopeName] ?: return false
+    if (grammarRegistry.findGrammar(scopeName) == null) {
+      registerGrammar(grammar)
+    }
+    return true
+  }
+
   private suspend fun registerGrammar(grammar: GrammarModel) {
-    if (grammarRegistry.findGrammar(grammar.scopeName) == null) {
-      registerEmbeddedLanguagesGrammar(grammar)
+    pendingRegistrations.update { it + 1 }
+    try {
+      dependenciesOf(grammar).forEach { loadGrammar(it) }
+    } finally {
+      pendingRegistrations.update { it - 1 }
+    }
+  }
 
-      val grammarSource =
-        IGrammarSource.fromInputStream(
-          FileProviderRegistry.getInstance().tryGetInputStream(grammar.grammar),
-          grammar.grammar,
-          Charset.defaultCharset(),
-        )
+  /** Loads [grammar] into the registry if it is not there yet. Its embeds must be loaded first. */
+  private suspend fun loadGrammar(grammar: GrammarModel) {
+    registrationMutex.withLock {
+      if (grammarRegistry.findGrammar(grammar.scopeName) != null) return
 
-      grammarRegistry.loadGrammar(
-        DefaultGrammarDefinition.withLanguageConfiguration(
-            grammarSource,
-            grammar.languageConfiguration,
-            grammar.name,
-            grammar.scopeName,
-          )
-          .withEmbeddedLanguages(grammar.embeddedLanguages)
+      val startTime = System.nanoTime()
+      val cachedFile = cache?.getGrammarFile(grammar.grammar)
+      val input =
+        if (cachedFile != null) {
+          FileInputStream(cachedFile).buffered()
+        } else {
+          FileProviderRegistry.getInstance().tryGetInputStream(grammar.grammar)
+        }
+
+      input.use {
+        // The parser is chosen by the extension of the name, cached grammars are JSON
+        val grammarSource =
+          if (cachedFile != null) {
+            IGrammarSource.fromInputStream(it, cachedFile.name, Charsets.UTF_8)
+          } else {
+            IGrammarSource.fromInputStream(it, grammar.grammar, Charset.defaultCharset())
+          }
+
+        grammarRegistry.loadGrammar(
+          DefaultGrammarDefinition.withLanguageConfiguration(
+              grammarSource,
+              grammar.languageConfiguration,
+              grammar.name,
+              grammar.scopeName,
+            )
+            .withEmbeddedLanguages(grammar.embeddedLanguages)
+        )
+      }
+      log.d(
+        "Registered grammar %s in %d ms (%s)",
+        grammar.name,
+        (System.nanoTime() - startTime) / 1_000_000,
+        if (cachedFile != null) "cached" else "asset",
       )
     }
   }
 
-  private suspend fun registerEmbeddedLanguagesGrammar(grammar: GrammarModel) {
-    val embeddedLanguages = grammar.embeddedLanguages ?: return
+  fun findGrammarByFileExtension(extension: String?): GrammarModel? =
+    if (extension.isNullOrEmpty()) null else byExtension[extension.lowercase()]
+
+  fun findGrammarByName(name: String): GrammarModel? = byName[name]
+
+  fun findGrammarByScope(scopeName: String): GrammarModel? = byScope[scopeName]
 
-    for ((_, name) in embeddedLanguages) {
-      val embeddedGrammar = findGrammarByName(name)
-      if (embeddedGrammar != null) {
-        registerGrammar(embeddedGrammar)
+  /**
+   * Recognizes the language of [file] from its first bytes: a shebang (`#!/usr/bin/env python3`),
+   * a vim or emacs modeline (`vim: ft=sh`, `-*- mode: lua -*-`) or the first line pattern of a
+   * grammar (e.g. `<?xml`).
+   */
+  fun findGrammarByContent(file: File): GrammarModel? {
+    val head =
+      try {
+        FileInputStream(file).use { input ->
+          val bytes = ByteArray(SNIFF_SIZE)
+          var length = 0
+          while (length < bytes.size) {
+            val read = input.read(bytes, length, bytes.size - length)
+            if (read == -1) break
+            length += read
+          }
+          String(bytes, 0, length, Charsets.UTF_8)
+        }
+      } catch (e: IOException) {
+        return null
       }
-    }
+    return findGrammarByContent(head)
   }
 
-  fun findGrammarByFileExtension(extension: String?): GrammarModel? =
-    _grammars.find { it.fileExtensions?.contains(extension) ?: false }
+  /** Recognizes the language of a text from its beginning [head], see [findGrammarByContent]. */
+  fun findGrammarByContent(head: String): GrammarModel? {
+    val lines = head.removePrefix("\uFEFF").lineSequence().take(SNIFF_LINES).toList()
+    val firstLine = lines.firstOrNull() ?: return null
 
-  fun findGrammarByName(name: String): GrammarModel? = _grammars.find { it.name == name }
+    shebangRegex.find(firstLine)?.let { match ->
+      val (command, argument) = match.destructured
+      // "#!/usr/bin/env python3" names the interpreter as argument of env
+      val program = if (command.endsWith("/env") && argument.isNotEmpty()) argument else command
+      findGrammarByInterpreter(program.substringAfterLast('/'))?.let {
+        return it
+      }
+    }
+
+    for (line in lines) {
+      val mode =
+        vimModelineRegex.find(line)?.groupValues?.get(1)
+          ?: emacsModelineRegex.find(line)?.groupValues?.drop(1)?.firstOrNull { it.isNotEmpty() }
+          ?: continue
+      val grammar =
+        byName[mode.lowercase()]
+          ?: findGrammarByFileExtension(mode)
+          ?: findGrammarByInterpreter(mode)
+      if (grammar != null) return grammar
+    }
 
-  fun findGrammarByScope(scopeName: String): GrammarModel? =
-    _grammars.find { it.scopeName == scopeName }
+    return firstLinePatterns.firstOrNull { (regex, _) -> regex.containsMatchIn(firstLine) }?.second
+  }
+
+  private fun findGrammarByInterpreter(name: String): GrammarModel? {
+    return byInterpreter[name] ?: byInterpreter[name.replace(interpreterVersionRegex, "")]
+  }
 
   class GrammarModel(
     val name: String,
@@ -109,5 +383,11 @@ object GrammarProvider {
     val languageConfiguration: String? = null,
     val embeddedLanguages: Map<String, String>? = null,
     val fileExtensions: Array<String>? = null,
+    /** Exact names of files without a telling extension, e.g. `Jenkinsfile`. */
+    val fileNames: Array<String>? = null,
+    /** Interpreters named by the shebang of scripts, e.g. `python` for `python3`. */
+    val interpreters: Array<String>? = null,
+    /** Pattern matching the first line of files, e.g. `^<\?xml`. */
+    val firstLine: String? = null,
   )
 }
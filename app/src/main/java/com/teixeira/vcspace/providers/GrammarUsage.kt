@@ -0,0 +1,62 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.providers
+
+import android.content.Context
+import android.content.SharedPreferences
+
+/**
+ * Counts how often files of each language are opened, halved once one reaches [MAX_COUNT], to
+ * know which grammars to warm up.
+ */
+class GrammarUsage(private val prefs: SharedPreferences) {
+
+  @Synchronized
+  fun recordOpen(name: String) {
+    val count = prefs.getInt(name, 0) + 1
+    val editor = prefs.edit()
+    if (count >= MAX_COUNT) {
+      counts().forEach { (other, otherCount) -> editor.putInt(other, otherCount / 2) }
+      editor.putInt(name, count / 2)
+    } else {
+      editor.putInt(name, count)
+    }
+    editor.apply()
+  }
+
+  /** Returns the names of the [count] languages opened most often, most often first. */
+  fun mostUsed(count: Int): List<String> {
+    return counts()
+      .filterValues { it > 0 }
+      .entries
+      .sortedByDescending { it.value }
+      .take(count)
+      .map { it.key }
+  }
+
+  private fun counts(): Map<String, Int> {
+    return prefs.all.mapNotNull { (name, value) -> (value as? Int)?.let { name to it } }.toMap()
+  }
+
+  companion object {
+    private const val PREFERENCE_NAME = "grammar_usage"
+    private const val MAX_COUNT = 1000
+
+    fun create(context: Context): GrammarUsage {
+      return GrammarUsage(context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE))
+    }
+  }
+}
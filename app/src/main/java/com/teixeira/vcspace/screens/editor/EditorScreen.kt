@@ -15,15 +15,21 @@
 
 package com.teixeira.vcspace.screens.editor
 
+import android.view.ViewGroup
 import androidx.compose.foundation.isSystemInDarkTheme
 import androidx.compose.foundation.layout.Arrangement
 import androidx.compose.foundation.layout.Column
+import androidx.compose.foundation.layout.Row
 import androidx.compose.foundation.layout.Spacer
+import androidx.compose.foundation.layout.fillMaxHeight
 import androidx.compose.foundation.layout.fillMaxSize
+import androidx.compose.foundation.layout.fillMaxWidth
 import androidx.compose.foundation.layout.height
 import androidx.compose.material3.ElevatedButton
+import androidx.compose.material3.HorizontalDivider
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Text
+import androidx.compose.material3.VerticalDivider
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.LaunchedEffect
 import androidx.compose.runtime.getValue
@@ -54,10 +60,11 @@ import com.teixeira.vcspace.core.settings.Settings.Editor.rememberWordWrap
 import com.teixeira.vcspace.core.settings.Settings.File.rememberLastOpenedFile
 import com.teixeira.vcspace.core.settings.Settings.General.rememberFollowSystemTheme
 import com.teixeira.vcspace.core.settings.Settings.General.rememberIsDarkMode
+import com.teixeira.vcspace.editor.CodeEditorView
 import com.teixeira.vcspace.editor.VCSpaceEditor
+import com.teixeira.vcspace.editor.highlight.textMateLanguage
 import com.teixeira.vcspace.resources.R
 import com.teixeira.vcspace.viewmodel.editor.EditorViewModel
-import io.github.rosemoe.sora.langs.textmate.TextMateLanguage
 import io.github.rosemoe.sora.langs.textmate.registry.ThemeRegistry
 import kotlinx.coroutines.launch
 
@@ -71,6 +78,7 @@ fun EditorScreen(
 
   val openedFiles = uiState.openedFiles
   val selectedFileIndex = uiState.selectedFileIndex
+  val splitPane by viewModel.splitPane.collectAsStateWithLifecycle()
 
   LaunchedEffect(selectedFileIndex) {
     viewModel.rememberLastFiles()
@@ -78,10 +86,8 @@ fun EditorScreen(
 
   val openLastFiles by rememberLastOpenedFile()
 
-  if (openLastFiles) {
-    viewModel.lastOpenedFiles().forEach {
-      viewModel.addFile(it)
-    }
+  LaunchedEffect(openLastFiles) {
+    if (openLastFiles) viewModel.restoreSession()
   }
 
   val context = LocalContext.current
@@ -99,10 +105,25 @@ fun EditorScreen(
         viewModel.setEditorConfiguredForFile(fileEntry.file)
       }
 
-      key(fileEntry.file.path) {
-        AndroidView(
-          factory = { editorView },
-          modifier = Modifier.fillMaxSize()
+      val split = splitPane
+      if (split == null) {
+        key(fileEntry.file.path) {
+          EditorPane(editorView, Modifier.fillMaxSize())
+        }
+      } else {
+        val splitEditorView = viewModel.getSplitEditor(context, split.file)
+        key(split.file.path) {
+          configureEditor(splitEditorView.editor)
+        }
+
+        SplitPanes(
+          stacked = split.stacked,
+          first = { paneModifier ->
+            key(fileEntry.file.path) { EditorPane(editorView, paneModifier) }
+          },
+          second = { paneModifier ->
+            key(split.file.path, "split") { EditorPane(splitEditorView, paneModifier) }
+          }
         )
       }
     } ?: run {
@@ -111,6 +132,40 @@ fun EditorScreen(
   }
 }
 
+@Composable
+private fun EditorPane(editorView: CodeEditorView, modifier: Modifier) {
+  AndroidView(
+    factory = {
+      // The view moves between layouts when the split pane is opened or closed
+      (editorView.parent as? ViewGroup)?.removeView(editorView)
+      editorView
+    },
+    modifier = modifier
+  )
+}
+
+/** Lays out two editor panes side by side, or one above the other if [stacked]. */
+@Composable
+private fun SplitPanes(
+  stacked: Boolean,
+  first: @Composable (Modifier) -> Unit,
+  second: @Composable (Modifier) -> Unit
+) {
+  if (stacked) {
+    Column(modifier = Modifier.fillMaxSize()) {
+      first(Modifier.weight(1f).fillMaxWidth())
+      HorizontalDivider(thickness = 1.dp)
+      second(Modifier.weight(1f).fillMaxWidth())
+    }
+  } else {
+    Row(modifier = Modifier.fillMaxSize()) {
+      first(Modifier.weight(1f).fillMaxHeight())
+      VerticalDivider(thickness = 1.dp)
+      second(Modifier.weight(1f).fillMaxHeight())
+    }
+  }
+}
+
 @Composable
 fun NoOpenedFiles() {
   val drawerState = LocalDrawerState.current
@@ -189,9 +244,8 @@ private fun configureColorScheme(editor: VCSpaceEditor) {
           "Solarized Dark" -> "solarized_drak"
           else -> if ((followSystemTheme && isDarkTheme) || isDarkMode) "darcula" else "quietlight"
         }
-      ).also {
-        setText(text.toString()) // Required to update colors correctly
-      }
+      )
+      applyThemeChange()
     }
   }
 }
@@ -203,8 +257,8 @@ private fun configureIndentation(editor: VCSpaceEditor) {
 
   LaunchedEffect(indentSize, useTab) {
     editor.apply {
-      (editorLanguage as? TextMateLanguage)?.tabSize = indentSize
-      (editorLanguage as? TextMateLanguage)?.useTab(useTab)
+      editorLanguage.textMateLanguage?.tabSize = indentSize
+      editorLanguage.textMateLanguage?.useTab(useTab)
       tabWidth = indentSize
     }
   }
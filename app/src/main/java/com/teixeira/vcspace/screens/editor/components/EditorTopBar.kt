@@ -90,7 +90,6 @@ import com.teixeira.vcspace.viewmodel.editor.EditorViewModel
 import io.github.rosemoe.sora.event.ContentChangeEvent
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import org.greenrobot.eventbus.EventBus
 import java.io.File
@@ -116,6 +115,7 @@ fun EditorTopBar(
   val selectedFile = uiState.openedFiles.getOrNull(selectedFileIndex)
 
   val selectedEditor = selectedFile?.let { editors[it.file.path] }
+  val isSelectedFileModified = selectedFile?.isModified?.collectAsStateWithLifecycle()?.value
 
   var canUndo by remember { mutableStateOf(false) }
   var canRedo by remember { mutableStateOf(false) }
@@ -134,16 +134,17 @@ fun EditorTopBar(
       canRedo = editorView.canRedo()
 
       editorView.editor.subscribeEvent(ContentChangeEvent::class.java) { event, _ ->
+        // Chunks appended while the file is still streaming in are not user edits
+        if (editorView.isLoading && event.action != ContentChangeEvent.ACTION_SET_NEW_TEXT) {
+          return@subscribeEvent
+        }
+
         EventBus.getDefault().post(OnContentChangeEvent(selectedFile.file, event))
-        editorView.setModified(event.action != ContentChangeEvent.ACTION_SET_NEW_TEXT)
         canUndo = editorView.canUndo()
         canRedo = editorView.canRedo()
 
-        if (autoSave) {
-          scope.launch {
-            delay(100)
-            editorViewModel.saveFile()
-          }
+        if (autoSave && editorView.modified) {
+          editorViewModel.scheduleAutoSave(editorView)
         }
       }
     }
@@ -302,7 +303,7 @@ fun EditorTopBar(
           editorViewModel = editorViewModel,
           editor = selectedEditor,
           scope = scope,
-          modified = selectedFile?.isModified == true,
+          modified = isSelectedFileModified == true,
           areModifiedFiles = areModifiedFiles
         )
       }
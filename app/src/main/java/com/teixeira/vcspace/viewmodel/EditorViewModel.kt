@@ -11,6 +11,8 @@ class EditorViewModel : ViewModel() {
   private val _action = MutableLiveData<EditorAction>()
   private val _files = MutableLiveData<MutableList<File>>(mutableListOf())
   private val _selectedFile = MutableLiveData<Pair<Int, File?>>(-1 to null)
+  /** Index of each opened file by path, so it can be found on every edit without a scan. */
+  private val fileIndices = HashMap<String, Int>()
 
   val openedFiles: List<File>
     get() = _files.value!!
@@ -24,6 +26,11 @@ class EditorViewModel : ViewModel() {
   val selectedFileIndex: Int
     get() = _selectedFile.value!!.first
 
+  /** Returns the index of [file] among the opened files, -1 if it is not open. */
+  fun indexOf(file: File): Int {
+    return fileIndices[file.path] ?: -1
+  }
+
   fun openFile(file: File) {
     executeAction(EditorAction.OpenFileAction(file))
   }
@@ -47,18 +54,22 @@ class EditorViewModel : ViewModel() {
   fun addFile(file: File) {
     val files = this._files.value!!
     files.add(file)
+    fileIndices[file.path] = files.size - 1
     this._files.value = files
   }
 
   fun updateFile(index: Int, file: File) {
     val files = this._files.value!!
+    fileIndices.remove(files[index].path)
     files[index] = file
+    fileIndices[file.path] = index
     this._files.value = files
   }
 
   fun removeFile(index: Int) {
     val files = this._files.value!!
-    files.removeAt(index)
+    fileIndices.remove(files.removeAt(index).path)
+    for (i in index until files.size) fileIndices[files[i].path] = i
     this._files.value = files
 
     if (files.isEmpty()) setSelectedFile(-1, null)
@@ -67,6 +78,7 @@ class EditorViewModel : ViewModel() {
   fun removeAllFiles() {
     val files = this._files.value!!
     files.clear()
+    fileIndices.clear()
     this._files.value = files
     setSelectedFile(-1, null)
   }
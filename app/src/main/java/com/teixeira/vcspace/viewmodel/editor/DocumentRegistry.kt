@@ -0,0 +1,124 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.viewmodel.editor
+
+import com.teixeira.vcspace.editor.performance.PerformanceMode
+import com.teixeira.vcspace.utils.UniqueNameBuilder
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import java.io.File
+import java.io.IOException
+
+/** A file opened in a tab, its state in flows of its own so a change only reaches its observers. */
+class OpenedFile internal constructor(
+  val file: File,
+  /** Canonical path of [file], which identifies the document. */
+  val key: String,
+) {
+  private val _isModified = MutableStateFlow(false)
+  val isModified: StateFlow<Boolean> = _isModified.asStateFlow()
+
+  private val _isLoading = MutableStateFlow(false)
+  val isLoading: StateFlow<Boolean> = _isLoading.asStateFlow()
+
+  private val _performanceMode = MutableStateFlow(PerformanceMode.FULL)
+  /** Features the document is edited with, shown on its tab when some are off. */
+  val performanceMode: StateFlow<PerformanceMode> = _performanceMode.asStateFlow()
+
+  private val _title = MutableStateFlow(file.name)
+  /** Name shown in the tab, the shortest path that tells it apart from the other tabs. */
+  val title: StateFlow<String> = _title.asStateFlow()
+
+  fun setModified(modified: Boolean) {
+    _isModified.value = modified
+  }
+
+  fun setLoading(loading: Boolean) {
+    _isLoading.value = loading
+  }
+
+  fun setPerformanceMode(mode: PerformanceMode) {
+    _performanceMode.value = mode
+  }
+
+  internal fun setTitle(title: String) {
+    _title.value = title
+  }
+}
+
+/** The [OpenedFile]s by canonical path. Must be used from the main thread. */
+class DocumentRegistry {
+
+  private val byKey = HashMap<String, OpenedFile>()
+  private val byPath = HashMap<String, OpenedFile>()
+  private var titles = UniqueNameBuilder<String>("", File.separator)
+
+  val size: Int
+    get() = byKey.size
+
+  operator fun get(file: File): OpenedFile? {
+    return byPath[file.path] ?: byKey[canonicalPath(file)]
+  }
+
+  /** Returns the document of [file], registering it first if it is not open. */
+  fun open(file: File): OpenedFile {
+    val key = canonicalPath(file)
+    byKey[key]?.let {
+      return it
+    }
+
+    val document = OpenedFile(file, key)
+    byKey[key] = document
+    byPath[file.path] = document
+    updateTitles(titles.addPath(key, key))
+    return document
+  }
+
+  /** Moves [document] to [newFile], which its file was renamed to, and returns its new document. */
+  fun rename(document: OpenedFile, newFile: File): OpenedFile {
+    close(document)
+    return open(newFile).also {
+      it.setModified(document.isModified.value)
+      it.setLoading(document.isLoading.value)
+      it.setPerformanceMode(document.performanceMode.value)
+    }
+  }
+
+  fun close(document: OpenedFile) {
+    if (byKey.remove(document.key) == null) return
+    byPath.remove(document.file.path)
+    updateTitles(titles.removePath(document.key))
+  }
+
+  fun clear() {
+    byKey.clear()
+    byPath.clear()
+    titles = UniqueNameBuilder("", File.separator)
+  }
+
+  private fun updateTitles(keys: Set<String>) {
+    keys.forEach { key -> byKey[key]?.setTitle(titles.getShortPath(key)) }
+  }
+
+  private fun canonicalPath(file: File): String {
+    return try {
+      file.canonicalPath
+    } catch (e: IOException) {
+      file.absolutePath
+    }
+  }
+}
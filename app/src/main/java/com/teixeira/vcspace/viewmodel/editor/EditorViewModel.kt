@@ -19,39 +19,76 @@ import android.content.Context
 import androidx.compose.runtime.mutableStateMapOf
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
-import com.blankj.utilcode.util.FileUtils
-import com.google.gson.Gson
 import com.teixeira.vcspace.activities.editor.EditorActivity.Companion.LAST_OPENED_FILES_JSON_PATH
+import com.teixeira.vcspace.editor.AutoSaveScheduler
 import com.teixeira.vcspace.editor.CodeEditorView
+import com.teixeira.vcspace.editor.TabHibernator
+import com.teixeira.vcspace.editor.document.DocumentManager
+import com.teixeira.vcspace.editor.performance.PerformanceMode
+import com.teixeira.vcspace.editor.readOrMigrate
+import com.teixeira.vcspace.editor.session.DocumentState
+import com.teixeira.vcspace.editor.session.SessionStore
 import com.teixeira.vcspace.extensions.toFile
-import com.teixeira.vcspace.models.FileHistory
+import com.teixeira.vcspace.preferences.editorLargeFileThreshold
+import com.teixeira.vcspace.preferences.editorTabsLiveTextBudget
+import com.teixeira.vcspace.preferences.editorTabsMaxLive
+import io.github.rosemoe.sora.widget.EditorSearcher.SearchOptions
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.asStateFlow
-import kotlinx.coroutines.flow.update
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.io.File
+import java.util.regex.PatternSyntaxException
 
 class EditorViewModel : ViewModel() {
-  data class OpenedFile(
-    val file: File,
-    val isModified: Boolean = false
-  )
-
+  /**
+   * The open tabs. The state of each document is held by its [OpenedFile], so editing a document
+   * does not produce a new [UiState].
+   */
   data class UiState(
     val openedFiles: List<OpenedFile> = emptyList(),
     val selectedFileIndex: Int = 0
   )
 
+  /** A second editor pane showing [file] beside the selected tab, or below it if [stacked]. */
+  data class SplitPane(
+    val file: File,
+    val stacked: Boolean
+  )
+
   private val _uiState = MutableStateFlow(UiState())
   val uiState get() = _uiState.asStateFlow()
 
+  private val _splitPane = MutableStateFlow<SplitPane?>(null)
+  val splitPane get() = _splitPane.asStateFlow()
+  private var splitEditor: CodeEditorView? = null
+
+  private val documents = DocumentRegistry()
+  /** Texts of the open files, which outlive their views. */
+  private val documentManager = DocumentManager()
+
   private val _editors = mutableStateMapOf<String, CodeEditorView>()
   val editors get() = _editors
 
   private val _editorConfigMap = mutableStateMapOf<String, Boolean>()
   val editorConfigMap get() = _editorConfigMap
 
+  private val autoSaveScheduler = AutoSaveScheduler(viewModelScope) { saveFile(it) }
+  private val tabHibernator =
+    TabHibernator(viewModelScope, { editorTabsMaxLive }, { editorTabsLiveTextBudget })
+
+  private val sessionStore = SessionStore()
+  /** States of the restored tabs whose editor was not created yet. */
+  private val restoredStates = HashMap<String, DocumentState>()
+  /** Performance modes chosen by the user, by path, kept when the editor of a tab is released. */
+  private val performanceOverrides = HashMap<String, PerformanceMode>()
+
+  /** Schedules an autosave of [editorView] only, coalesced with its other pending edits. */
+  fun scheduleAutoSave(editorView: CodeEditorView) {
+    autoSaveScheduler.markDirty(editorView)
+  }
+
   fun setEditorConfiguredForFile(file: File) {
     _editorConfigMap[file.path] = true
   }
@@ -61,8 +98,109 @@ class EditorViewModel : ViewModel() {
     file: File
   ): CodeEditorView {
     return _editors.getOrPut(file.path) {
-      CodeEditorView(context, file)
+      val hibernated = tabHibernator.wakeUp(file.path)
+      CodeEditorView(context, file, hibernated, documentManager.open(file)).also { editorView ->
+        restoredStates.remove(file.path)?.let { editorView.restoreState(it) }
+        editorView.performanceOverride = performanceOverrides[file.path]
+        editorView.openFilesReplace = ::replaceInOpenFiles
+        documents[file]?.let { bindEditor(editorView, it) }
+      }
+    }
+  }
+
+  /** Reflects the state of [editorView] in the tab of its [document]. */
+  private fun bindEditor(editorView: CodeEditorView, document: OpenedFile) {
+    editorView.onLoadingChanged = { document.setLoading(it) }
+    editorView.onPerformanceModeChanged = { document.setPerformanceMode(it) }
+    document.setLoading(editorView.isLoading)
+    document.setPerformanceMode(editorView.performanceMode)
+  }
+
+  /**
+   * Returns the editor of the split pane. It shows the document of the tab of [file], so both
+   * panes edit the same text and only the tab reads, watches and journals the file.
+   */
+  fun getSplitEditor(context: Context, file: File): CodeEditorView {
+    splitEditor?.let {
+      if (it.file == file) return it
+      it.release()
     }
+    val document = documentManager.open(file)
+    return CodeEditorView(context, file, document = document, followDocument = true)
+      .also { splitEditor = it }
+  }
+
+  /** Returns the performance mode chosen by the user for the tab at [index], if any. */
+  fun getPerformanceOverride(index: Int): PerformanceMode? {
+    val file = uiState.value.openedFiles.getOrNull(index)?.file ?: return null
+    return performanceOverrides[file.path]
+  }
+
+  /** Edits the tab at [index] in [mode] whatever its size, or in the mode it fits if `null`. */
+  fun setPerformanceOverride(index: Int, mode: PerformanceMode?) {
+    val file = uiState.value.openedFiles.getOrNull(index)?.file ?: return
+    if (mode != null) {
+      performanceOverrides[file.path] = mode
+    } else performanceOverrides.remove(file.path)
+    _editors[file.path]?.performanceOverride = mode
+  }
+
+  /**
+   * Replaces [query] with [replacement] in the text of every tab, without creating the editors of
+   * the tabs that have none. Tabs still loading and large files are left out.
+   */
+  fun replaceInOpenFiles(query: String, replacement: String, options: SearchOptions) {
+    val useRegex = options.type == SearchOptions.TYPE_REGULAR_EXPRESSION
+    val regexOptions = if (options.caseInsensitive) setOf(RegexOption.IGNORE_CASE) else setOf()
+    val regex =
+      try {
+        Regex(if (useRegex) query else Regex.escape(query), regexOptions)
+      } catch (e: PatternSyntaxException) {
+        return
+      }
+    val files =
+      uiState.value.openedFiles.map { it.file }.filter { file ->
+        val editor = _editors[file.path]
+        if (editor != null) {
+          !editor.isLoading && !editor.isLargeFileViewer
+        } else file.length() <= editorLargeFileThreshold
+      }
+
+    viewModelScope.launch {
+      documentManager.replaceAll(
+        files,
+        regex,
+        if (useRegex) replacement else Regex.escapeReplacement(replacement)
+      )
+      files.forEach { updateModified(it) }
+    }
+  }
+
+  /** Whether the tab at [index] can be shown in the split pane, large files are only shown once. */
+  fun canSplit(index: Int): Boolean {
+    val file = uiState.value.openedFiles.getOrNull(index)?.file ?: return false
+    val editor = _editors[file.path]
+    if (editor != null) return !editor.isLargeFileViewer
+    return file.length() <= editorLargeFileThreshold
+  }
+
+  /** Shows the file of the tab at [index] in the split pane. */
+  fun openSplitPane(index: Int, stacked: Boolean) {
+    // The document of a large file is never loaded, the split pane would wait for it forever
+    if (!canSplit(index)) return
+    val file = uiState.value.openedFiles.getOrNull(index)?.file ?: return
+    _splitPane.value = SplitPane(file, stacked)
+  }
+
+  fun closeSplitPane() {
+    _splitPane.value = null
+    splitEditor?.release()
+    splitEditor = null
+  }
+
+  /** Returns the opened document of [file], `null` if it is not open. */
+  fun getDocument(file: File): OpenedFile? {
+    return documents[file]
   }
 
   fun getEditorForFile(file: File): CodeEditorView? {
@@ -73,53 +211,99 @@ class EditorViewModel : ViewModel() {
     return _editors[uiState.value.openedFiles[uiState.value.selectedFileIndex].file.path]
   }
 
-  fun rememberLastFiles() {
-    val lastOpenedFiles = Gson().toJson(FileHistory(uiState.value.openedFiles.map { it.file.path }))
+  private var sessionRestored = false
+  private var restoringSession = false
+
+  /**
+   * Stores the open tabs and the state of their live editors in the session. The write is
+   * debounced unless [flush] is true, e.g. when the activity is paused.
+   */
+  fun rememberLastFiles(flush: Boolean = false) {
+    // Writing now would overwrite the session before it was read
+    if (restoringSession) return
+
+    val state = uiState.value
+    sessionStore.update(
+      paths = state.openedFiles.map { it.file.path },
+      selectedIndex = if (state.openedFiles.isEmpty()) -1 else state.selectedFileIndex,
+      documents = _editors.values.mapNotNull { it.captureState() }
+    )
+    if (flush) sessionStore.flush()
+  }
 
-    viewModelScope.launch(Dispatchers.IO) {
-      File(LAST_OPENED_FILES_JSON_PATH).apply {
-        FileUtils.createOrExistsFile(this)
-        writeText(lastOpenedFiles)
-      }
+  /**
+   * Reopens the tabs of the last session, once. Only the tabs are created: the editor of a tab,
+   * which reads its file and creates its language, is created when the tab is first shown (see
+   * [getEditorForFile]), so startup does not depend on the number of remembered files.
+   */
+  fun restoreSession() {
+    if (sessionRestored) return
+    sessionRestored = true
+    restoringSession = true
+
+    viewModelScope.launch {
+      val (session, files) =
+        withContext(Dispatchers.IO) {
+          val session = sessionStore.readOrMigrate(File(LAST_OPENED_FILES_JSON_PATH))
+          session to session.paths.map { it.toFile() }.filter { it.isFile }
+        }
+      restoringSession = false
+
+      restoredStates.putAll(session.documents)
+      addTabs(files, session.paths.getOrNull(session.selectedIndex))
     }
   }
 
-  fun lastOpenedFiles(): List<File> {
-    val file = File(LAST_OPENED_FILES_JSON_PATH)
-    if (!file.exists()) return emptyList()
+  private fun addTabs(files: List<File>, selectedPath: String?) {
+    val openedFiles = uiState.value.openedFiles
+    val newFiles = files.filter { documents[it] == null }.map { documents.open(it) }.distinct()
+    if (newFiles.isEmpty()) return
+
+    val newOpenedFiles = openedFiles + newFiles
+    // Files opened in the meantime keep the selection
+    val selectedIndex =
+      if (openedFiles.isEmpty()) {
+        newOpenedFiles.indexOfFirst { it.file.path == selectedPath }
+          .takeIf { it != -1 } ?: (newOpenedFiles.size - 1)
+      } else uiState.value.selectedFileIndex
 
-    val fileHistory =
-      Gson().fromJson(file.readText(), FileHistory::class.java) ?: return emptyList()
-    return fileHistory.lastOpenedFilesPath.map { it.toFile() }
+    _uiState.value = uiState.value.copy(
+      openedFiles = newOpenedFiles,
+      selectedFileIndex = selectedIndex
+    )
+    onFileSelected()
   }
 
   fun setModified(file: File, modified: Boolean) {
-    _uiState.update { currentState ->
-      val updatedFiles = currentState.openedFiles.map { openedFile ->
-        if (openedFile.file == file) {
-          openedFile.copy(isModified = modified)
-        } else {
-          openedFile
-        }
-      }
-      currentState.copy(openedFiles = updatedFiles)
-    }
+    documents[file]?.setModified(modified)
+  }
+
+  /** Shows whether the text of [file] is saved, from its editor or else from its document. */
+  private fun updateModified(file: File) {
+    setModified(file, _editors[file.path]?.modified ?: (documentManager[file]?.isDirty == true))
   }
 
   suspend fun saveFile(editorView: CodeEditorView? = null) {
-    editorView?.saveFile() ?: getSelectedEditor()?.saveFile()
-    (editorView?.file ?: getSelectedEditor()?.file)?.let { setModified(it, false) }
+    val editor = editorView ?: getSelectedEditor() ?: return
+    editor.saveFile()
+    // Edits made during the write are still unsaved
+    editor.file?.let { setModified(it, editor.modified) }
   }
 
   suspend fun saveAll() {
     editors.values.forEach {
       it.saveFile()
-      it.file?.let { file -> setModified(file, false) }
+      it.file?.let { file -> setModified(file, it.modified) }
+    }
+    documentManager.saveDetached()
+    // Documents saved without a view
+    uiState.value.openedFiles.forEach {
+      if (_editors[it.file.path] == null) updateModified(it.file)
     }
   }
 
   fun addFile(file: File) {
-    val openedFile = OpenedFile(file)
+    val openedFile = documents.open(file)
 
     val newOpenedFiles = uiState.value.openedFiles.toMutableList()
     if (!newOpenedFiles.contains(openedFile)) newOpenedFiles.add(openedFile)
@@ -130,6 +314,7 @@ class EditorViewModel : ViewModel() {
       openedFiles = newOpenedFiles,
       selectedFileIndex = newSelectedFileIndex
     )
+    onFileSelected()
   }
 
   fun addFiles(vararg files: File) {
@@ -140,12 +325,62 @@ class EditorViewModel : ViewModel() {
 
   fun selectFile(index: Int) {
     _uiState.value = uiState.value.copy(selectedFileIndex = index)
+    onFileSelected()
+  }
+
+  /** Hibernates the least recently used background editors that exceed the budget. */
+  private fun onFileSelected() {
+    val state = uiState.value
+    val selectedPath = state.openedFiles.getOrNull(state.selectedFileIndex)?.file?.path
+    selectedPath?.let { tabHibernator.onSelected(it) }
+    // Hibernated editors keep the session state they had when they were released
+    rememberLastFiles()
+
+    val hibernatedPaths =
+      tabHibernator.trim(_editors, selectedPath) { editor ->
+        editor.canHibernate && !autoSaveScheduler.isPending(editor)
+      }
+    // The view created on wake up has to be configured again
+    hibernatedPaths.forEach { _editorConfigMap.remove(it) }
+  }
+
+  /**
+   * Moves the tab of [oldFile] to [newFile], which the file was renamed to. Its editor keeps its
+   * text and its undo history.
+   */
+  fun renameFile(oldFile: File, newFile: File) {
+    val openedFile = documents[oldFile] ?: return
+    val oldPath = openedFile.file.path
+    val renamedFile = documents.rename(openedFile, newFile)
+    val newPath = renamedFile.file.path
+    documentManager.rename(openedFile.file, renamedFile.file)
+
+    // The tab was saved when it was hibernated, it reads the renamed file when shown again
+    tabHibernator.forget(oldPath)
+    restoredStates.remove(oldPath)
+    performanceOverrides.remove(oldPath)?.let { performanceOverrides[newPath] = it }
+    _editorConfigMap.remove(oldPath)?.let { _editorConfigMap[newPath] = it }
+    _editors.remove(oldPath)?.let { editorView ->
+      _editors[newPath] = editorView
+      editorView.updateFile(renamedFile.file, updateContent = false)
+      bindEditor(editorView, renamedFile)
+    }
+    splitPane.value?.let { pane ->
+      if (pane.file.path != oldPath) return@let
+      splitEditor?.file = renamedFile.file
+      _splitPane.value = pane.copy(file = renamedFile.file)
+    }
+
+    _uiState.value = uiState.value.copy(
+      openedFiles = uiState.value.openedFiles.map { if (it == openedFile) renamedFile else it }
+    )
+    rememberLastFiles()
   }
 
   fun closeFile(index: Int) {
-    val newOpenedFiles = uiState.value.openedFiles.toMutableList()
-    val closingFilePath = newOpenedFiles[index].file.path
-    newOpenedFiles.removeAt(index)
+    val openedFiles = uiState.value.openedFiles
+    val closingFile = openedFiles[index]
+    val newOpenedFiles = openedFiles - closingFile
 
     val newSelectedFileIndex = if (newOpenedFiles.isEmpty()) {
       0
@@ -153,32 +388,57 @@ class EditorViewModel : ViewModel() {
       index.coerceAtMost(newOpenedFiles.size - 1)
     }
 
-    _editorConfigMap[closingFilePath] = false
-
     _uiState.value = uiState.value.copy(
       openedFiles = newOpenedFiles,
       selectedFileIndex = newSelectedFileIndex
     )
-
-    _editors.remove(closingFilePath)?.release()
+    releaseTab(closingFile)
   }
 
   fun closeOthers(index: Int) {
-    val newOpenedFiles = uiState.value.openedFiles.toMutableList()
-    val selectedFile = newOpenedFiles[index]
-    newOpenedFiles.removeAll { it != selectedFile }
+    val openedFiles = uiState.value.openedFiles
+    val selectedFile = openedFiles[index]
+
     _uiState.value = uiState.value.copy(
-      openedFiles = newOpenedFiles,
+      openedFiles = listOf(selectedFile),
       selectedFileIndex = 0
     )
+    openedFiles.forEach { if (it != selectedFile) releaseTab(it) }
+  }
+
+  /**
+   * Releases all that was kept for the tab of [openedFile], once it was removed from the tabs:
+   * its pending autosave, its editor, its split pane and its document.
+   */
+  private fun releaseTab(openedFile: OpenedFile) {
+    val path = openedFile.file.path
+    documents.close(openedFile)
+    if (splitPane.value?.file?.path == path) closeSplitPane()
+
+    _editorConfigMap.remove(path)
+    _editors[path]?.let { autoSaveScheduler.cancel(it) }
+    tabHibernator.forget(path)
+    restoredStates.remove(path)
+    performanceOverrides.remove(path)
+
+    // The views let go of the document before it drops its text
+    _editors.remove(path)?.release()
+    documentManager.close(openedFile.file)
   }
 
   fun closeAll() {
+    closeSplitPane()
     _editorConfigMap.clear()
+    autoSaveScheduler.cancelAll()
+    tabHibernator.forgetAll()
+    restoredStates.clear()
+    performanceOverrides.clear()
+    documents.clear()
 
     _uiState.value = uiState.value.copy(openedFiles = emptyList())
 
     _editors.values.forEach { it.release() }
     _editors.clear()
+    documentManager.closeAll()
   }
 }
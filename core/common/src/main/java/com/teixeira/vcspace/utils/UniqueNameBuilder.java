@@ -1,12 +1,24 @@
 // Copyright 2000-2022 JetBrains s.r.o. and contributors. Use of this source code is governed by the Apache 2.0 license.
 package com.teixeira.vcspace.utils;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
+ * Builds the shortest unique names of a set of paths.
+ *
+ * <p>The trie is maintained incrementally: {@link #addPath} and {@link #removePath} only update
+ * the nodes of the given path, and only recompute the short names of the paths with the same file
+ * name, as no other short name can depend on those nodes. Both return the keys whose short name
+ * changed, so callers only need to update those. A path whose file name is unique among the paths
+ * is shortened to its file name.
+ *
  * @param <T> The type of path.
  * @see <a
  * href="https://github.com/JetBrains/intellij-community/blob/master/platform/util/base/src/com/intellij/filename/UniqueNameBuilder.java">UniqueNameBuilder.java</a>
@@ -15,6 +27,9 @@ public final class UniqueNameBuilder<T> {
 
   private static final String VFS_SEPARATOR = "/";
   private final Map<T, String> myPaths = new HashMap<>();
+  private final Map<T, String> myShortPaths = new HashMap<>();
+  // Keys grouped by the last component of their path
+  private final Map<String, Set<T>> myKeysByFileName = new HashMap<>();
   private final String mySeparator;
   private final String myRoot;
   private final Node myRootNode = new Node("", null);
@@ -39,7 +54,6 @@ public final class UniqueNameBuilder<T> {
     return myPaths.size();
   }
 
-  /** @noinspection ReassignedVariable*/
   // Build a trie from path components starting from end
   // E.g. following try will be build from example
   //                                                                                   |<-------[/fabrique]  <-  [/idea]
@@ -47,7 +61,18 @@ public final class UniqueNameBuilder<T> {
   // /idea/fabrique/download/index.html           [RootNode] <- [/index.html] <- [/download] <- [/pycharm]  <- [/idea]
   // /idea/pycharm/documentation/index.html                              |
   //                                                                     |<------[/documentation] <- [/pycharm]  <- [/idea]
-  public void addPath(T key, String path) {
+  /**
+   * Adds the path of {@code key}, replacing its previous path if any.
+   *
+   * @return The keys whose short name changed, including {@code key}.
+   * @noinspection ReassignedVariable
+   */
+  public Set<T> addPath(T key, String path) {
+    Set<T> changed = new LinkedHashSet<>();
+    if (myPaths.containsKey(key)) {
+      changed.addAll(removePath(key));
+    }
+
     path = trimStart(path, myRoot);
     myPaths.put(key, path);
 
@@ -61,14 +86,76 @@ public final class UniqueNameBuilder<T> {
     for (Node c = current; c != null; c = c.myParentNode) {
       ++c.myNestedChildrenCount;
     }
+
+    String fileName = fileName(path);
+    Set<T> group = myKeysByFileName.get(fileName);
+    if (group == null) {
+      myKeysByFileName.put(fileName, group = new HashSet<>());
+    }
+    group.add(key);
+    updateShortPaths(group, changed);
+    return changed;
   }
 
-  public String getShortPath(T key) {
-    String path = myPaths.get(key);
+  /**
+   * Removes the path of {@code key} and prunes the nodes no other path goes through.
+   *
+   * @return The keys whose short name changed, not including {@code key}.
+   */
+  public Set<T> removePath(T key) {
+    String path = myPaths.remove(key);
+    myShortPaths.remove(key);
     if (path == null) {
-      return key.toString();
+      return Collections.emptySet();
+    }
+
+    Node current = myRootNode;
+    Iterator<String> pathComponentsIterator = new PathComponentsIterator(path);
+
+    while (pathComponentsIterator.hasNext()) {
+      current = current.myChildren.get(pathComponentsIterator.next());
+    }
+    for (Node c = current; c != null; c = c.myParentNode) {
+      if (--c.myNestedChildrenCount == 0 && c != myRootNode) {
+        c.myParentNode.myChildren.remove(c.myText);
+      }
     }
 
+    String fileName = fileName(path);
+    Set<T> group = myKeysByFileName.get(fileName);
+    group.remove(key);
+    if (group.isEmpty()) {
+      myKeysByFileName.remove(fileName);
+      return Collections.emptySet();
+    }
+
+    Set<T> changed = new LinkedHashSet<>();
+    updateShortPaths(group, changed);
+    return changed;
+  }
+
+  public String getShortPath(T key) {
+    String shortPath = myShortPaths.get(key);
+    return shortPath != null ? shortPath : key.toString();
+  }
+
+  private void updateShortPaths(Set<T> keys, Set<T> changed) {
+    for (T key : keys) {
+      String shortPath = keys.size() == 1 ? fileName(myPaths.get(key)) : computeShortPath(key);
+      if (!shortPath.equals(myShortPaths.put(key, shortPath))) {
+        changed.add(key);
+      }
+    }
+  }
+
+  private static String fileName(String path) {
+    PathComponentsIterator iterator = new PathComponentsIterator(path);
+    return iterator.hasNext() ? trimStart(iterator.next(), VFS_SEPARATOR) : "";
+  }
+
+  private String computeShortPath(T key) {
+    String path = myPaths.get(key);
+
     Node current = myRootNode;
     Node firstNodeWithBranches = null;
     Node firstNodeBeforeNodeWithBranches = null;
@@ -78,7 +165,7 @@ public final class UniqueNameBuilder<T> {
 
     while (pathComponentsIterator.hasNext()) {
       String pathComponent = pathComponentsIterator.next();
-      current = current.findOrAddChild(pathComponent);
+      current = current.myChildren.get(pathComponent);
 
       if (fileNameNode == null) {
         fileNameNode = current;
@@ -14,6 +14,9 @@ android {
   }
 
   buildFeatures { viewBinding = true }
+
+  // Tests run on the JVM, without the Android framework behind the editor classes
+  testOptions { unitTests.isReturnDefaultValues = true }
 }
 
 dependencies {
@@ -26,13 +29,23 @@ dependencies {
   implementation(libs.common.editor)
   implementation(libs.common.editor.lsp)
   implementation(libs.common.editor.textmate)
+  implementation(libs.common.editor.treesitter)
   implementation(libs.common.eventbus)
   implementation(libs.common.utilcode)
   implementation(libs.common.jsoup)
 
+  implementation(libs.treesitter.c)
+  implementation(libs.treesitter.cpp)
+  implementation(libs.treesitter.java)
+  implementation(libs.treesitter.json)
+  implementation(libs.treesitter.kotlin)
+  implementation(libs.treesitter.python)
+
   implementation(libs.org.eclipse.lsp4j)
   implementation(libs.org.eclipse.lsp4j.jsonrpc)
 
   implementation(project(":core:common"))
   implementation(project(":core:resources"))
+
+  testImplementation(libs.junit)
 }
@@ -0,0 +1,214 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor
+
+import io.github.rosemoe.sora.event.ContentChangeEvent
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.text.ContentLine
+import kotlin.random.Random
+
+/**
+ * Hash of the whole text of a [Content], kept up to date in O(log n) per edit: the line hashes are
+ * kept in an implicit treap whose nodes hold the hash of their subtree.
+ */
+class ContentFingerprint {
+
+  private var left = IntArray(INITIAL_CAPACITY)
+  private var right = IntArray(INITIAL_CAPACITY)
+  private var priority = IntArray(INITIAL_CAPACITY)
+  private var size = IntArray(INITIAL_CAPACITY)
+  private var hash = LongArray(INITIAL_CAPACITY)
+  private var aggregate = LongArray(INITIAL_CAPACITY)
+  private var power = LongArray(INITIAL_CAPACITY).apply { this[NIL] = 1L }
+
+  private var root = NIL
+  private var allocated = 0
+  private var freeList = NIL
+
+  private var splitLeft = NIL
+  private var splitRight = NIL
+
+  val value: Long
+    get() = aggregate[root] * BASE + size[root]
+
+  fun reset(content: Content) {
+    release(root)
+    val hashes = LongArray(content.lineCount) { hashLine(content.getLine(it)) }
+    root = build(hashes, 0, hashes.size)
+  }
+
+  /** [event] must be delivered after the change was applied to the content. */
+  fun onContentChanged(event: ContentChangeEvent) {
+    onLinesChanged(event.editor.text, event.action, event.changeStart.line, event.changeEnd.line)
+  }
+
+  internal fun onLinesChanged(content: Content, action: Int, startLine: Int, endLine: Int) {
+    when (action) {
+      ContentChangeEvent.ACTION_SET_NEW_TEXT -> reset(content)
+      // Line startLine was split into the lines startLine..endLine
+      ContentChangeEvent.ACTION_INSERT ->
+        replaceLines(startLine, 1, content, endLine - startLine + 1)
+      // Lines startLine..endLine were joined into line startLine
+      ContentChangeEvent.ACTION_DELETE ->
+        replaceLines(startLine, endLine - startLine + 1, content, 1)
+    }
+  }
+
+  private fun replaceLines(startLine: Int, removeCount: Int, content: Content, insertCount: Int) {
+    val hashes = LongArray(insertCount) { hashLine(content.getLine(startLine + it)) }
+
+    split(root, startLine)
+    val before = splitLeft
+    split(splitRight, removeCount)
+    val removed = splitLeft
+    val after = splitRight
+
+    release(removed)
+    root = merge(merge(before, build(hashes, 0, hashes.size)), after)
+  }
+
+  private fun hashLine(line: ContentLine): Long {
+    var h = FNV_OFFSET
+    for (i in 0 until line.length) {
+      h = (h xor line[i].code.toLong()) * FNV_PRIME
+    }
+    return (h xor line.lineSeparator.ordinal.toLong()) * FNV_PRIME
+  }
+
+  /** Splits [node] into its first [count] lines ([splitLeft]) and the rest ([splitRight]). */
+  private fun split(node: Int, count: Int) {
+    if (node == NIL) {
+      splitLeft = NIL
+      splitRight = NIL
+      return
+    }
+
+    if (size[left[node]] >= count) {
+      split(left[node], count)
+      left[node] = splitRight
+      update(node)
+      splitRight = node
+    } else {
+      split(right[node], count - size[left[node]] - 1)
+      right[node] = splitLeft
+      update(node)
+      splitLeft = node
+    }
+  }
+
+  private fun merge(a: Int, b: Int): Int {
+    if (a == NIL) return b
+    if (b == NIL) return a
+
+    return if (priority[a] > priority[b]) {
+      right[a] = merge(right[a], b)
+      update(a)
+      a
+    } else {
+      left[b] = merge(a, left[b])
+      update(b)
+      b
+    }
+  }
+
+  /** Builds a balanced subtree from `hashes[from until to]`. */
+  private fun build(hashes: LongArray, from: Int, to: Int): Int {
+    if (from >= to) return NIL
+
+    val mid = (from + to) ushr 1
+    val node = allocate(hashes[mid])
+    left[node] = build(hashes, from, mid)
+    right[node] = build(hashes, mid + 1, to)
+    siftDown(node)
+    update(node)
+    return node
+  }
+
+  /** Restores the heap order of priorities below [node] by swapping priority values only. */
+  private fun siftDown(node: Int) {
+    var current = node
+    while (true) {
+      var max = current
+      val l = left[current]
+      val r = right[current]
+      if (l != NIL && priority[l] > priority[max]) max = l
+      if (r != NIL && priority[r] > priority[max]) max = r
+      if (max == current) return
+
+      val tmp = priority[current]
+      priority[current] = priority[max]
+      priority[max] = tmp
+      current = max
+    }
+  }
+
+  private fun update(node: Int) {
+    val l = left[node]
+    val r = right[node]
+    size[node] = size[l] + size[r] + 1
+    power[node] = power[l] * BASE * power[r]
+    aggregate[node] = (aggregate[l] * BASE + hash[node]) * power[r] + aggregate[r]
+  }
+
+  private fun allocate(lineHash: Long): Int {
+    val node: Int
+    if (freeList != NIL) {
+      node = freeList
+      freeList = left[node]
+    } else {
+      node = ++allocated
+      if (node >= left.size) grow()
+    }
+
+    left[node] = NIL
+    right[node] = NIL
+    priority[node] = Random.nextInt()
+    hash[node] = lineHash
+    size[node] = 1
+    power[node] = BASE
+    aggregate[node] = lineHash
+    return node
+  }
+
+  private fun release(node: Int) {
+    if (node == NIL) return
+    release(left[node])
+    release(right[node])
+    left[node] = freeList
+    freeList = node
+  }
+
+  private fun grow() {
+    val capacity = left.size * 2
+    left = left.copyOf(capacity)
+    right = right.copyOf(capacity)
+    priority = priority.copyOf(capacity)
+    size = size.copyOf(capacity)
+    hash = hash.copyOf(capacity)
+    aggregate = aggregate.copyOf(capacity)
+    power = power.copyOf(capacity)
+  }
+
+  companion object {
+    private const val NIL = 0
+    private const val INITIAL_CAPACITY = 64
+
+    // Odd, so multiplying by it modulo 2^64 never shifts the hash of the first lines out
+    private const val BASE = -0x61c8864680b583ebL
+    private const val FNV_OFFSET = -0x340d631b7bdddcdbL
+    private const val FNV_PRIME = 0x100000001b3L
+  }
+}
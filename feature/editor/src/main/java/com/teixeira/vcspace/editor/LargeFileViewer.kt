@@ -0,0 +1,213 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor
+
+import com.blankj.utilcode.util.ToastUtils
+import com.teixeira.vcspace.editor.io.MappedTextFile
+import com.teixeira.vcspace.editor.io.writeAtomically
+import com.teixeira.vcspace.resources.R
+import io.github.rosemoe.sora.event.ScrollEvent
+import io.github.rosemoe.sora.event.SubscriptionReceipt
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.IOException
+
+/**
+ * Shows a window of at most [WINDOW_LINES] lines of a [MappedTextFile] that follows the viewport.
+ * Its edits are written back with [saveWindow].
+ */
+class LargeFileViewer(
+  private val editor: VCSpaceEditor,
+  mappedFile: MappedTextFile,
+  private val scope: CoroutineScope,
+) {
+
+  var mappedFile: MappedTextFile = mappedFile
+    private set
+
+  private val scrollReceipt: SubscriptionReceipt<ScrollEvent>
+  private var windowJob: Job? = null
+  private var searchJob: Job? = null
+
+  var windowStart: Int = 0
+    private set
+
+  var windowLines: Int = 0
+    private set
+
+  /** Whether a line of the window was cut, the window is then read-only. */
+  var isWindowTruncated: Boolean = false
+    private set
+
+  init {
+    scrollReceipt = editor.subscribeEvent(ScrollEvent::class.java) { _, _ -> onScroll() }
+  }
+
+  /** Moves the window so that [line] (zero-based, relative to the file) is visible. */
+  fun jumpToLine(line: Int, column: Int = 0, selectionLength: Int = 0) {
+    val target = line.coerceIn(0, mappedFile.lineCount - 1)
+    if (target in windowStart until windowStart + windowLines) {
+      select(target - windowStart, column, selectionLength)
+      return
+    }
+    // Unsaved edits would be lost by moving the window
+    if (editor.modified) {
+      ToastUtils.showShort(R.string.large_file_save_before_moving)
+      return
+    }
+    showWindow(target) { select(target - windowStart, column, selectionLength) }
+  }
+
+  /** Selects the next match of [query] in the file, from the cursor. */
+  fun find(query: String, forward: Boolean) {
+    if (query.isEmpty()) return
+
+    val cursor = editor.cursor
+    val cursorLine = windowStart + if (forward) cursor.rightLine else cursor.leftLine
+    val cursorColumn = if (forward) cursor.rightColumn else cursor.leftColumn
+    val linePrefix = editor.text.getLine(cursorLine - windowStart).substring(0, cursorColumn)
+
+    searchJob?.cancel()
+    searchJob =
+      scope.launch(Dispatchers.IO) {
+        val pattern = query.toByteArray(mappedFile.charset)
+        val cursorOffset =
+          mappedFile.lineStartOffset(cursorLine) +
+            linePrefix.toByteArray(mappedFile.charset).size
+        val from = if (forward) cursorOffset else cursorOffset - 1
+        val match = mappedFile.find(pattern, from, forward) { isActive }
+        if (match < 0L) return@launch
+
+        val line = mappedFile.lineOfOffset(match)
+        val column = mappedFile.decode(mappedFile.lineStartOffset(line), match).length
+
+        withContext(Dispatchers.Main) { jumpToLine(line, column, query.length) }
+      }
+  }
+
+  /** Shows the window around [anchorLine], then runs [onShown]. */
+  fun showWindow(anchorLine: Int, onShown: () -> Unit = {}) {
+    val anchor = anchorLine.coerceIn(0, (mappedFile.lineCount - 1).coerceAtLeast(0))
+    val shownStart = if (windowLines > 0) windowStart else -1
+
+    windowJob?.cancel()
+    windowJob =
+      scope.launch(Dispatchers.IO) {
+        val start = windowStartAround(anchor)
+        if (start == shownStart) return@launch
+        val window = mappedFile.readWindow(start, WINDOW_LINES, WINDOW_BYTES, MAX_LINE_BYTES)
+
+        withContext(Dispatchers.Main) {
+          windowStart = start
+          windowLines = window.lineCount
+          isWindowTruncated = window.isTruncated
+          editor.setText(window.text, null)
+          onShown()
+          // A cut line cannot be written back to the file
+          editor.isEditable = !window.isTruncated
+        }
+      }
+  }
+
+  private fun windowStartAround(anchor: Int): Int {
+    val anchorOffset = mappedFile.lineStartOffset(anchor)
+    var low = (anchor - WINDOW_LINES / 2).coerceAtLeast(0)
+    var high = anchor
+    while (low < high) {
+      val mid = (low + high) ushr 1
+      if (anchorOffset - mappedFile.lineStartOffset(mid) > WINDOW_BYTES / 2) {
+        low = mid + 1
+      } else high = mid
+    }
+    return low
+  }
+
+  /**
+   * Writes the edited window back into the file.
+   *
+   * @throws IOException if the file could not be written or mapped again.
+   */
+  suspend fun saveWindow() {
+    windowJob?.cancel()
+    searchJob?.cancel()
+
+    val (text, lineCount) =
+      withContext(Dispatchers.Main) { editor.text.let { it.toString() to it.lineCount } }
+    val oldFile = mappedFile
+
+    val newFile =
+      withContext(Dispatchers.IO) {
+        val (start, end) = oldFile.lineRange(windowStart, windowLines)
+        val replacement = oldFile.charset.encode(text)
+        // The splice reads the file it replaces, it cannot be written in place
+        oldFile.file.writeAtomically(inPlaceFallback = false) { channel ->
+          oldFile.spliceTo(channel, start, end, replacement)
+        }
+
+        MappedTextFile(oldFile.file, oldFile.charset).apply {
+          indexAfterSplice(oldFile, windowStart, windowLines, lineCount)
+        }
+      }
+
+    withContext(Dispatchers.Main) {
+      mappedFile = newFile
+      windowLines = lineCount
+      oldFile.close()
+    }
+  }
+
+  fun release() {
+    scrollReceipt.unsubscribe()
+    windowJob?.cancel()
+    searchJob?.cancel()
+    mappedFile.close()
+  }
+
+  private fun onScroll() {
+    if (windowJob?.isActive == true || windowLines == 0 || editor.modified) return
+
+    val firstVisible = editor.firstVisibleLine
+    val lastVisible = editor.lastVisibleLine
+    val nearEnd = lastVisible >= windowLines - EDGE_LINES
+    val nearStart = firstVisible <= EDGE_LINES
+    val windowEnd = windowStart + windowLines
+
+    if ((nearEnd && windowEnd < mappedFile.lineCount) || (nearStart && windowStart > 0)) {
+      val anchor = windowStart + firstVisible
+      showWindow(anchor) { editor.jumpToLine(anchor - windowStart) }
+    }
+  }
+
+  private fun select(line: Int, column: Int, length: Int) {
+    // The match may be in the part of a cut line that is not shown
+    val columnCount = editor.text.getColumnCount(line)
+    if (length > 0 && column + length <= columnCount) {
+      editor.setSelectionRegion(line, column, line, column + length)
+    } else editor.jumpToLine(line)
+  }
+
+  companion object {
+    const val WINDOW_LINES = 10_000
+    const val WINDOW_BYTES = 8L * 1024 * 1024
+    /** Length of the part of a line shown, it must leave room for the lines around it. */
+    const val MAX_LINE_BYTES = 256 * 1024
+    private const val EDGE_LINES = 200
+  }
+}
@@ -27,6 +27,23 @@ class SearcherLayout @JvmOverloads constructor(
   private var searcher: EditorSearcher? = null
   private var isSearching = false
 
+  /**
+   * Optional search over text that is not loaded into the editor, such as the file behind a
+   * [LargeFileViewer]. Used by the previous/next buttons when regex search is disabled.
+   */
+  var fileSearch: ((query: String, forward: Boolean) -> Unit)? = null
+
+  /**
+   * Optional replace over every open file, used by the replace all button when the option to
+   * replace in all open files is checked.
+   */
+  var openFilesReplace: ((query: String, replacement: String, options: SearchOptions) -> Unit)? =
+    null
+    set(value) {
+      field = value
+      optionsMenu.menu.findItem(2).isVisible = value != null
+    }
+
   init {
     binding.searchText.addTextChangedListener(
       object : TextWatcher {
@@ -49,9 +66,15 @@ class SearcherLayout @JvmOverloads constructor(
       isCheckable = true
       isChecked = false
     }
+    optionsMenu.menu.add(0, 2, 0, R.string.editor_search_option_open_files).apply {
+      isCheckable = true
+      isChecked = false
+      isVisible = false
+    }
 
     optionsMenu.setOnMenuItemClickListener { item ->
       item.isChecked = !item.isChecked
+      if (item.itemId == 2) return@setOnMenuItemClickListener true
 
       var ignoreCase: Boolean = searchOptions.caseInsensitive
       var useRegex: Boolean = searchOptions.type == SearchOptions.TYPE_REGULAR_EXPRESSION
@@ -113,6 +136,7 @@ class SearcherLayout @JvmOverloads constructor(
   }
 
   private fun gotoLast() {
+    if (searchInFile(forward = false)) return
     try {
       searcher?.gotoPrevious()
     } catch (e: IllegalStateException) {
@@ -121,6 +145,7 @@ class SearcherLayout @JvmOverloads constructor(
   }
 
   private fun gotoNext() {
+    if (searchInFile(forward = true)) return
     try {
       searcher?.gotoNext()
     } catch (e: IllegalStateException) {
@@ -128,6 +153,14 @@ class SearcherLayout @JvmOverloads constructor(
     }
   }
 
+  private fun searchInFile(forward: Boolean): Boolean {
+    val fileSearch = fileSearch ?: return false
+    if (searchOptions.type == SearchOptions.TYPE_REGULAR_EXPRESSION) return false
+
+    fileSearch(binding.searchText.text.toString(), forward)
+    return true
+  }
+
   private fun replace() {
     try {
       searcher?.replaceCurrentMatch(binding.replaceText.text.toString())
@@ -137,6 +170,12 @@ class SearcherLayout @JvmOverloads constructor(
   }
 
   private fun replaceAll() {
+    val openFilesReplace = openFilesReplace
+    val query = binding.searchText.text.toString()
+    if (openFilesReplace != null && optionsMenu.menu.findItem(2).isChecked && query.isNotEmpty()) {
+      openFilesReplace(query, binding.replaceText.text.toString(), searchOptions)
+      return
+    }
     try {
       searcher?.replaceAll(binding.replaceText.text.toString())
     } catch (e: IllegalStateException) {
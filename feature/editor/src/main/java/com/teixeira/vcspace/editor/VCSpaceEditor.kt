@@ -24,10 +24,10 @@ import com.blankj.utilcode.util.ToastUtils
 import com.teixeira.vcspace.editor.completion.CompletionListAdapter
 import com.teixeira.vcspace.editor.completion.CustomCompletionLayout
 import com.teixeira.vcspace.editor.events.OnContentChangeEvent
+import com.teixeira.vcspace.editor.highlight.textMateLanguage
 import com.teixeira.vcspace.editor.lsp.service.KotlinLSPService
 import io.github.rosemoe.sora.event.ContentChangeEvent
 import io.github.rosemoe.sora.lang.Language
-import io.github.rosemoe.sora.langs.textmate.TextMateLanguage
 import io.github.rosemoe.sora.lsp.client.connection.SocketStreamConnectionProvider
 import io.github.rosemoe.sora.lsp.client.languageserver.serverdefinition.CustomLanguageServerDefinition
 import io.github.rosemoe.sora.lsp.client.languageserver.serverdefinition.CustomLanguageServerDefinition.ServerConnectProvider
@@ -61,17 +61,84 @@ class VCSpaceEditor @JvmOverloads constructor(
   private lateinit var lspEditor: LspEditor
   private lateinit var lspProject: LspProject
 
+  private val fingerprint = ContentFingerprint()
+  private var savedFingerprint = 0L
+  private var forceModified = false
+  private var themeOutdated = false
+
   var file: File? = null
-  var modified: Boolean = false
+
+  /**
+   * Whether the text differs from the text at the last load or save. Undoing back to the saved
+   * text makes the editor unmodified again. Setting it to true keeps the editor modified until it
+   * is set to false, e.g. for content restored from somewhere other than the file.
+   */
+  var modified: Boolean
+    get() = forceModified || fingerprint.value != savedFingerprint
+    set(value) {
+      forceModified = value
+      if (!value) savedFingerprint = fingerprint.value
+    }
+
+  /** Fingerprint of the current text, to be passed to [markSaved] once this text is saved. */
+  val textFingerprint: Long
+    get() = fingerprint.value
 
   val commentRule: CommentRule?
-    get() = (editorLanguage as? TextMateLanguage)?.languageConfiguration?.comments
+    get() = editorLanguage.textMateLanguage?.languageConfiguration?.comments
 
   init {
     getComponent(EditorTextActionWindow::class.java).isEnabled = false
     getComponent(EditorAutoCompletion::class.java).setLayout(CustomCompletionLayout())
     getComponent(EditorAutoCompletion::class.java).setAdapter(CompletionListAdapter())
     inputType = createInputTypeFlags()
+
+    fingerprint.reset(text)
+    savedFingerprint = fingerprint.value
+    subscribeEvent(ContentChangeEvent::class.java) { event, _ ->
+      fingerprint.onContentChanged(event)
+      // A new text is what was loaded from the file, so it is the new saved state
+      if (event.action == ContentChangeEvent.ACTION_SET_NEW_TEXT) modified = false
+    }
+  }
+
+  /**
+   * Marks the text whose fingerprint was [textFingerprint] as the saved one, e.g. once it was
+   * written to disk. Edits made since it was taken keep the editor modified.
+   */
+  fun markSaved(textFingerprint: Long) {
+    forceModified = false
+    savedFingerprint = textFingerprint
+  }
+
+  /**
+   * Applies the current theme of the [io.github.rosemoe.sora.langs.textmate.registry.ThemeRegistry]
+   * without touching the text, so the undo history is kept and nothing is copied.
+   *
+   * The TextMate color scheme follows the registry by itself, only the spans have to be recomputed
+   * for the new theme rules. The analyzer does that in the background while the current spans stay
+   * on screen. Hidden editors (e.g. background tabs) postpone the work until they are shown again,
+   * so switching themes only costs as much as the visible editors.
+   */
+  fun applyThemeChange() {
+    if (!isShown) {
+      themeOutdated = true
+      return
+    }
+
+    themeOutdated = false
+    editorLanguage.analyzeManager.rerun()
+    invalidate()
+  }
+
+  override fun onVisibilityAggregated(isVisible: Boolean) {
+    super.onVisibilityAggregated(isVisible)
+    if (isVisible && themeOutdated) post { applyThemeChange() }
+  }
+
+  override fun onAttachedToWindow() {
+    super.onAttachedToWindow()
+    if (themeOutdated) post { applyThemeChange() }
   }
 
   override fun hideEditorWindows() {
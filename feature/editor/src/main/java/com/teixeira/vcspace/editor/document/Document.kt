@@ -0,0 +1,224 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.document
+
+import com.teixeira.vcspace.editor.document.TextSnapshot.Companion.lineOf
+import com.teixeira.vcspace.editor.io.ChunkedTextReader
+import com.teixeira.vcspace.editor.io.ContentWriter
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.text.ContentListener
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
+import java.lang.ref.WeakReference
+
+/**
+ * The text of an open file, independent of any view: views [attach] to its content, which must only
+ * be edited from the main thread. Other threads read the text through a [snapshot].
+ */
+class Document internal constructor(file: File) {
+
+  private val listener = VersionListener()
+
+  @Volatile
+  var file: File = file
+    internal set
+
+  var content: Content? = null
+    private set
+
+  @Volatile var scopeName: String? = null
+
+  /** Increases with every edit and every change of content, so it never repeats. */
+  @Volatile
+  var version = 0L
+    private set
+
+  /** Copy of the lines for [snapshot], only kept while a snapshot taken from it is referenced. */
+  private var lineTable: LineTable? = null
+  private val liveSnapshots = mutableListOf<WeakReference<TextSnapshot>>()
+
+  private var savedVersion = 0L
+  private var forceDirty = false
+
+  private val contentReplacedListeners = mutableListOf<() -> Unit>()
+
+  var attachedViews = 0
+    private set
+
+  val isLoaded: Boolean
+    get() = content != null
+
+  /** Whether the content has edits that are not saved to [file]. */
+  val isDirty: Boolean
+    get() = forceDirty || version != savedVersion
+
+  /** Reads [file] into a new content if none is loaded yet. Must be called from the main thread. */
+  suspend fun load() {
+    if (isLoaded) return
+
+    val loaded =
+      withContext(Dispatchers.IO) {
+        Content().apply {
+          isUndoEnabled = false
+          ChunkedTextReader(file).use { reader ->
+            while (true) {
+              ensureActive()
+              val chunk = reader.readChunk() ?: break
+              val lastLine = lineCount - 1
+              insert(lastLine, getColumnCount(lastLine), chunk)
+            }
+          }
+          isUndoEnabled = true
+        }
+      }
+    // A view may have set the content while the file was read
+    if (!isLoaded) setContent(loaded, dirty = false)
+  }
+
+  /** [dirty] tells whether [content] differs from the file. */
+  fun setContent(content: Content, dirty: Boolean) {
+    if (this.content === content) {
+      if (dirty) forceDirty = true else markSaved()
+      return
+    }
+
+    this.content?.removeContentListener(listener)
+    content.addContentListener(listener)
+    this.content = content
+    dropLineTable()
+    savedVersion = ++version
+    forceDirty = dirty
+    contentReplacedListeners.toList().forEach { it() }
+  }
+
+  /** Drops the content to free its memory. Must only be called when it is not dirty. */
+  fun unload() {
+    content?.removeContentListener(listener)
+    content = null
+    dropLineTable()
+    savedVersion = ++version
+    forceDirty = false
+  }
+
+  fun addContentReplacedListener(listener: () -> Unit) {
+    contentReplacedListeners.add(listener)
+  }
+
+  fun removeContentReplacedListener(listener: () -> Unit) {
+    contentReplacedListeners.remove(listener)
+  }
+
+  /** Every call must be balanced by a [detach]. */
+  fun attach(): Content {
+    val content = checkNotNull(content) { "Document is not loaded: ${file.path}" }
+    attachedViews++
+    return content
+  }
+
+  fun detach() {
+    if (attachedViews > 0) attachedViews--
+  }
+
+  fun <T> edit(block: (Content) -> T): T {
+    return block(checkNotNull(content) { "Document is not loaded: ${file.path}" })
+  }
+
+  /**
+   * Immutable snapshot of the text at the current [version]. The lines are copied once, then
+   * the copy follows the edits while a snapshot of it is referenced.
+   */
+  fun snapshot(): TextSnapshot {
+    val content = checkNotNull(content) { "Document is not loaded: ${file.path}" }
+    val table = lineTable ?: LineTable(List(content.lineCount) { lineOf(content, it) })
+    lineTable = table
+    return table.snapshot(version, content.length).also {
+      liveSnapshots.removeAll { ref -> ref.get() == null }
+      liveSnapshots.add(WeakReference(it))
+    }
+  }
+
+  private fun liveLineTable(): LineTable? {
+    liveSnapshots.removeAll { it.get() == null }
+    if (liveSnapshots.isEmpty()) lineTable = null
+    return lineTable
+  }
+
+  private fun dropLineTable() {
+    lineTable = null
+    liveSnapshots.clear()
+  }
+
+  /** Edits made after [version] keep the document dirty. */
+  fun markSaved(version: Long = this.version) {
+    // The content was replaced since, the new one knows whether it is saved
+    if (version < savedVersion) return
+    savedVersion = version
+    forceDirty = false
+  }
+
+  /**
+   * Writes the content to [file] if it is dirty, returns false if there was nothing to save.
+   *
+   * @throws IOException if the write failed.
+   */
+  suspend fun save(writer: ContentWriter = ContentWriter()): Boolean {
+    if (!isLoaded || !isDirty) return false
+
+    val snapshot = snapshot()
+    withContext(Dispatchers.IO) { writer.write(snapshot, file) }
+    // Edits made during the write are not saved
+    markSaved(snapshot.version)
+    return true
+  }
+
+  private inner class VersionListener : ContentListener {
+    override fun beforeReplace(content: Content) {}
+
+    override fun afterInsert(
+      content: Content,
+      startLine: Int,
+      startColumn: Int,
+      endLine: Int,
+      endColumn: Int,
+      insertedContent: CharSequence,
+    ) {
+      version++
+      // Line startLine was split into the lines startLine..endLine
+      liveLineTable()?.let { table ->
+        val lines = List(endLine - startLine + 1) { lineOf(content, startLine + it) }
+        table.replace(startLine, 1, lines)
+      }
+    }
+
+    override fun afterDelete(
+      content: Content,
+      startLine: Int,
+      startColumn: Int,
+      endLine: Int,
+      endColumn: Int,
+      deletedContent: CharSequence,
+    ) {
+      version++
+      // Lines startLine..endLine were joined into line startLine
+      liveLineTable()?.let { table ->
+        table.replace(startLine, endLine - startLine + 1, listOf(lineOf(content, startLine)))
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.document
+
+import com.teixeira.vcspace.editor.io.ContentWriter
+import com.teixeira.vcspace.utils.Logger
+import io.github.rosemoe.sora.text.Content
+import java.io.File
+import java.io.IOException
+
+/**
+ * The [Document]s of the open files, so operations over many files do not need a view for each.
+ * Must be used from the main thread.
+ */
+class DocumentManager {
+
+  private val documents = HashMap<String, Document>()
+  private val writer = ContentWriter()
+
+  val openDocuments: Collection<Document>
+    get() = documents.values
+
+  operator fun get(file: File): Document? {
+    return documents[file.path]
+  }
+
+  /** Nothing is read yet. */
+  fun open(file: File): Document {
+    return documents.getOrPut(file.path) { Document(file) }
+  }
+
+  fun rename(oldFile: File, newFile: File) {
+    val document = documents.remove(oldFile.path) ?: return
+    document.file = newFile
+    documents[newFile.path] = document
+  }
+
+  fun close(file: File) {
+    documents.remove(file.path)?.unload()
+  }
+
+  fun closeAll() {
+    documents.values.forEach { it.unload() }
+    documents.clear()
+  }
+
+  /** Saves the dirty documents no view shows, views save their own. Returns how many were saved. */
+  suspend fun saveDetached(): Int {
+    var saved = 0
+    for (document in documents.values.toList()) {
+      if (document.attachedViews > 0) continue
+
+      try {
+        if (document.save(writer)) saved++
+      } catch (e: IOException) {
+        log.e("Failed to save file: ${document.file.path}", e)
+      }
+    }
+    return saved
+  }
+
+  /**
+   * Replaces the matches of [regex], which do not span lines, in the documents of [files]. Returns
+   * the number of replaced matches.
+   */
+  suspend fun replaceAll(files: List<File>, regex: Regex, replacement: String): Int {
+    var replaced = 0
+    for (file in files) {
+      val document = documents[file.path] ?: continue
+      try {
+        document.load()
+      } catch (e: IOException) {
+        log.e("Failed to read file: ${file.path}", e)
+        continue
+      }
+      replaced += document.edit { content -> replaceAll(content, regex, replacement) }
+    }
+    return replaced
+  }
+
+  private fun replaceAll(content: Content, regex: Regex, replacement: String): Int {
+    var replaced = 0
+    content.beginBatchEdit()
+    try {
+      // From the last line, so lines added by the replacement are not searched again
+      for (line in content.lineCount - 1 downTo 0) {
+        val text = content.getLineString(line)
+        val matches = regex.findAll(text).count()
+        if (matches == 0) continue
+        content.replace(line, 0, line, text.length, regex.replace(text, replacement))
+        replaced += matches
+      }
+    } finally {
+      content.endBatchEdit()
+    }
+    return replaced
+  }
+
+  companion object {
+    private val log = Logger.newInstance("DocumentManager")
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.document
+
+import io.github.rosemoe.sora.text.Content
+
+/**
+ * Immutable text of a [Document] at [version], readable from any thread. Each line is held with its
+ * line separator.
+ */
+class TextSnapshot internal constructor(
+  /** Version of the document the snapshot was taken at, see [Document.version]. */
+  val version: Long,
+  val length: Int,
+  private val blocks: Array<Array<String>>,
+  private val starts: IntArray,
+  val lineCount: Int,
+) {
+
+  fun getLine(index: Int): String {
+    if (index < 0 || index >= lineCount) {
+      throw IndexOutOfBoundsException("Line $index, line count $lineCount")
+    }
+    val block = LineTable.blockOf(starts, blocks.size, index)
+    return blocks[block][index - starts[block]]
+  }
+
+  inline fun forEachLine(action: (String) -> Unit) {
+    for (i in 0 until lineCount) action(getLine(i))
+  }
+
+  override fun toString(): String {
+    return buildString(length) { forEachLine { append(it) } }
+  }
+
+  companion object {
+
+    /**
+     * Copies every line of [content], a content without [Document], at version 0. Must be called
+     * from the thread that edits the content.
+     */
+    fun copyOf(content: Content): TextSnapshot {
+      val lines = List(content.lineCount) { lineOf(content, it) }
+      return LineTable(lines).snapshot(0L, content.length)
+    }
+
+    internal fun lineOf(content: Content, index: Int): String {
+      val line = content.getLine(index)
+      return line.toString() + line.lineSeparator.content
+    }
+  }
+}
+
+/**
+ * Lines of a content in immutable blocks of about [BLOCK_SIZE] lines, kept in step with its edits
+ * so a [TextSnapshot] is taken in O(1). Must only be updated from the thread editing the content.
+ */
+internal class LineTable(lines: List<String>) {
+
+  private var blocks: Array<Array<String>> = chunk(lines).toTypedArray()
+  private var starts = computeStarts(blocks)
+  private var lineCount = lines.size
+
+  fun snapshot(version: Long, length: Int): TextSnapshot {
+    return TextSnapshot(version, length, blocks, starts, lineCount)
+  }
+
+  /** Replaces [removeCount] lines from [startLine] with [newLines]. */
+  fun replace(startLine: Int, removeCount: Int, newLines: List<String>) {
+    val endLine = startLine + removeCount
+    require(startLine in 0..lineCount && endLine <= lineCount) {
+      "Lines $startLine..$endLine, line count $lineCount"
+    }
+
+    var first = if (blocks.isEmpty()) 0 else blockOf(starts, blocks.size, startLine)
+    var last = if (removeCount > 0) blockOf(starts, blocks.size, endLine - 1) else first
+    first = first.coerceAtMost(blocks.size)
+    last = last.coerceAtMost(blocks.size - 1)
+
+    val merged = ArrayList<String>()
+    if (first < blocks.size) {
+      val firstStart = starts[first]
+      blocks[first].let { merged.addAll(it.asList().subList(0, startLine - firstStart)) }
+      merged.addAll(newLines)
+      val lastStart = starts[last]
+      blocks[last].let { merged.addAll(it.asList().subList(endLine - lastStart, it.size)) }
+    } else {
+      merged.addAll(newLines)
+    }
+
+    // Merge small blocks into their neighbour so edits do not fragment the table
+    while (merged.size < BLOCK_SIZE / 2 && last + 1 < blocks.size) {
+      last++
+      merged.addAll(blocks[last])
+    }
+
+    val replaced = chunk(merged)
+    val removedBlocks = if (first < blocks.size) last - first + 1 else 0
+    val newBlocks = ArrayList<Array<String>>(blocks.size - removedBlocks + replaced.size)
+    for (i in 0 until first) newBlocks.add(blocks[i])
+    newBlocks.addAll(replaced)
+    for (i in first + removedBlocks until blocks.size) newBlocks.add(blocks[i])
+
+    blocks = newBlocks.toTypedArray()
+    starts = computeStarts(blocks)
+    lineCount += newLines.size - removeCount
+  }
+
+  companion object {
+    const val BLOCK_SIZE = 256
+
+    fun blockOf(starts: IntArray, blockCount: Int, line: Int): Int {
+      var low = 0
+      var high = blockCount - 1
+      while (low < high) {
+        val mid = (low + high + 1) ushr 1
+        if (starts[mid] <= line) low = mid else high = mid - 1
+      }
+      return low
+    }
+
+    private fun chunk(lines: List<String>): List<Array<String>> {
+      if (lines.isEmpty()) return emptyList()
+      val count = (lines.size + BLOCK_SIZE - 1) / BLOCK_SIZE
+      // Spread the lines evenly rather than leaving a small last block
+      return List(count) { i ->
+        val from = lines.size * i / count
+        val to = lines.size * (i + 1) / count
+        lines.subList(from, to).toTypedArray()
+      }
+    }
+
+    private fun computeStarts(blocks: Array<Array<String>>): IntArray {
+      val starts = IntArray(blocks.size)
+      var line = 0
+      for (i in blocks.indices) {
+        starts[i] = line
+        line += blocks[i].size
+      }
+      return starts
+    }
+  }
+}
@@ -22,3 +22,6 @@ data class OnContentChangeEvent(
   val file: File?,
   val event: ContentChangeEvent
 )
+
+/** Posted when unsaved edits of [file] were restored from its edit journal. */
+data class OnEditsRecoveredEvent(val file: File)
@@ -0,0 +1,169 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.highlight
+
+import com.teixeira.vcspace.editor.io.FileStamp
+import com.teixeira.vcspace.editor.io.writeAtomically
+import com.teixeira.vcspace.utils.Logger
+import io.github.rosemoe.sora.lang.styling.Span
+import io.github.rosemoe.sora.lang.styling.SpanFactory
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.nio.channels.Channels
+import java.util.UUID
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Spans of the lines of a file from an earlier session. [matchesFile] tells the file is
+ * unchanged, so the [lineHashes] need not be compared.
+ */
+class CachedHighlight(
+  val lineHashes: IntArray,
+  val lines: List<List<Span>>,
+  val matchesFile: Boolean,
+)
+
+/**
+ * On-disk cache of the spans of long files, per path, grammar version and theme. At most
+ * [MAX_ENTRIES] entries and [MAX_BYTES] are kept. Must be used from a background thread.
+ */
+class HighlightCache(private val dir: File) {
+
+  /** Returns the cached spans of [file], now at [stamp], `null` if there are none that fit. */
+  fun read(file: File, stamp: FileStamp, grammarVersion: String, theme: String): CachedHighlight? {
+    val entry = entryOf(file)
+    if (!entry.exists()) return null
+
+    return try {
+      val highlight =
+        DataInputStream(BufferedInputStream(GZIPInputStream(FileInputStream(entry)))).use { input ->
+          if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) return null
+          if (input.readUTF() != file.path) return null
+          if (input.readUTF() != grammarVersion || input.readUTF() != theme) return null
+          val cachedStamp = FileStamp(input.readLong(), input.readLong(), input.readLong())
+          val matchesFile = cachedStamp == stamp
+
+          val lineCount = input.readCount()
+          // Grown while reading, so a garbled count runs out of data instead of memory
+          var hashes = IntArray(0)
+          val lines = ArrayList<List<Span>>()
+          for (line in 0 until lineCount) {
+            if (line == hashes.size) hashes = hashes.copyOf(maxOf(line * 2, 1024))
+            hashes[line] = input.readInt()
+            val spans = ArrayList<Span>()
+            repeat(input.readCount()) {
+              spans.add(SpanFactory.obtain(input.readInt(), input.readLong()))
+            }
+            lines.add(spans)
+          }
+          CachedHighlight(hashes.copyOf(lineCount), lines, matchesFile)
+        }
+      // Mark the entry as recently used
+      entry.setLastModified(System.currentTimeMillis())
+      highlight
+    } catch (e: Exception) {
+      // A garbled entry is a miss like any other
+      log.e("Failed to read highlighting of ${file.path}", e)
+      entry.delete()
+      null
+    }
+  }
+
+  /** Stores the spans of [file] at [stamp], then evicts the least recently used entries. */
+  fun write(
+    file: File,
+    stamp: FileStamp,
+    grammarVersion: String,
+    theme: String,
+    highlight: CachedHighlight,
+  ) {
+    synchronized(lock) {
+      try {
+        dir.mkdirs()
+        entryOf(file).writeAtomically { channel ->
+          val gzip = GZIPOutputStream(Channels.newOutputStream(channel))
+          // Not closed, the channel must stay open until it is synced
+          val output = DataOutputStream(BufferedOutputStream(gzip))
+          output.writeInt(MAGIC)
+          output.writeInt(FORMAT_VERSION)
+          output.writeUTF(file.path)
+          output.writeUTF(grammarVersion)
+          output.writeUTF(theme)
+          output.writeLong(stamp.size)
+          output.writeLong(stamp.lastModified)
+          output.writeLong(stamp.checksum)
+
+          output.writeInt(highlight.lines.size)
+          highlight.lines.forEachIndexed { line, spans ->
+            output.writeInt(highlight.lineHashes[line])
+            output.writeInt(spans.size)
+            for (span in spans) {
+              output.writeInt(span.column)
+              output.writeLong(span.style)
+            }
+          }
+          output.flush()
+          gzip.finish()
+        }
+        evict()
+      } catch (e: IOException) {
+        log.e("Failed to write highlighting of ${file.path}", e)
+      }
+    }
+  }
+
+  private fun evict() {
+    val entries = dir.listFiles()?.sortedByDescending { it.lastModified() } ?: return
+    var bytes = 0L
+    entries.forEachIndexed { index, entry ->
+      bytes += entry.length()
+      if (index >= MAX_ENTRIES || bytes > MAX_BYTES) entry.delete()
+    }
+  }
+
+  private fun DataInputStream.readCount(): Int {
+    val count = readInt()
+    if (count < 0) throw IOException("Invalid count: $count")
+    return count
+  }
+
+  private fun entryOf(file: File): File {
+    return File(dir, UUID.nameUUIDFromBytes(file.path.toByteArray()).toString())
+  }
+
+  companion object {
+    private const val MAGIC = 0x56435348 // "VCSH"
+    private const val FORMAT_VERSION = 1
+    private const val MAX_ENTRIES = 32
+    private const val MAX_BYTES = 32L * 1024 * 1024
+
+    private val lock = Any()
+    private val log = Logger.newInstance("HighlightCache")
+
+    /** Hash of the text of a line, without its line separator. */
+    fun hashLine(line: CharSequence): Int {
+      var hash = 0
+      for (i in line.indices) hash = 31 * hash + line[i].code
+      return hash
+    }
+  }
+}
@@ -0,0 +1,379 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.highlight
+
+import io.github.rosemoe.sora.lang.styling.Span
+import java.util.BitSet
+import java.util.TreeMap
+import kotlinx.coroutines.channels.ClosedReceiveChannelException
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.yield
+
+/** Work sent to a [HighlightScheduler], in the order the text changed. */
+internal sealed interface HighlightRequest {
+
+  /**
+   * Highlights the text from scratch. [restoredLines] already show spans, the lines
+   * [restore] still matches are shown from it first.
+   */
+  class Reset(
+    val generation: Int,
+    val lineCount: Int,
+    val restoredLines: BitSet = BitSet(),
+    val restore: CachedHighlight? = null,
+  ) : HighlightRequest
+
+  /** Lines [startLine]..[oldEndLine] were replaced by the lines [startLine]..[newEndLine]. */
+  class Edit(
+    val generation: Int,
+    val lineCount: Int,
+    val startLine: Int,
+    val oldEndLine: Int,
+    val newEndLine: Int,
+  ) : HighlightRequest
+
+  /** Lines [first]..[last] are shown. */
+  class Viewport(val first: Int, val last: Int) : HighlightRequest
+}
+
+/** Spans of the lines from [startLine], computed for the text at [generation]. */
+internal class SpanBatch(
+  val generation: Int,
+  val startLine: Int,
+  val lines: List<List<Span>>,
+  val restored: Boolean = false,
+)
+
+/**
+ * Highlights a text in the background, visible lines first, in slices of [SLICE_LINES]
+ * lines read with [readLines].
+ *
+ * Lines below the [frontier] have their exact spans. An edit restarts the work from the
+ * checkpoint before it, and the work stops again once the state of a line matches its old
+ * checkpoint. Visible lines far beyond the frontier are tokenized speculatively until the
+ * frontier reaches them.
+ */
+internal class HighlightScheduler<S>(
+  private val tokenizer: LineTokenizer<S>,
+  private val readLines: suspend (generation: Int, from: Int, count: Int) -> List<String>?,
+  private val publish: (SpanBatch) -> Unit,
+  private val onProgress: (generation: Int, queueDepth: Int) -> Unit,
+) {
+
+  private class StaleCheckpoint<S>(
+    val state: S,
+    /** Whether the lines after it were not highlighted from it, i.e. it ended the old work. */
+    val isRunEnd: Boolean,
+  )
+
+  private var generation = 0
+  private var lineCount = 0
+
+  private var frontier = 0
+  private var frontierState = tokenizer.initialState
+  private val checkpoints = TreeMap<Int, S>()
+  /** Checkpoints from before the last edits, all at or after the [frontier]. */
+  private val staleCheckpoints = TreeMap<Int, StaleCheckpoint<S>>()
+  private val speculated = BitSet()
+  /** Line reached by a speculation still catching up to the viewport, and its state. */
+  private var catchUpLine = -1
+  private var catchUpState = tokenizer.initialState
+
+  private var viewportFirst = 0
+  private var viewportLast = 0
+
+  /** Earlier highlighting still being matched against the text, first from its start. */
+  private var restore: CachedHighlight? = null
+  private var restoredPrefix = 0
+  /** Number of lines matched at the end of the text, `-1` while the start is being matched. */
+  private var restoredSuffix = -1
+
+  suspend fun run(requests: ReceiveChannel<HighlightRequest>) {
+    try {
+      while (true) {
+        var request = if (hasWork()) requests.tryReceive().getOrNull() else requests.receive()
+        while (request != null) {
+          handle(request)
+          request = requests.tryReceive().getOrNull()
+        }
+        if (requests.isClosedForReceive) return
+
+        step()
+        onProgress(generation, queueDepth())
+        yield()
+      }
+    } catch (e: ClosedReceiveChannelException) {
+      // The analyzer was reset or destroyed
+    }
+  }
+
+  private fun hasWork(): Boolean {
+    return frontier < lineCount
+  }
+
+  private fun queueDepth(): Int {
+    return lineCount - frontier
+  }
+
+  private fun handle(request: HighlightRequest) {
+    when (request) {
+      is HighlightRequest.Reset -> reset(request)
+      is HighlightRequest.Edit -> edit(request)
+      is HighlightRequest.Viewport -> {
+        viewportFirst = request.first
+        viewportLast = request.last
+      }
+    }
+  }
+
+  private fun reset(request: HighlightRequest.Reset) {
+    generation = request.generation
+    lineCount = request.lineCount
+    frontier = 0
+    frontierState = tokenizer.initialState
+    checkpoints.clear()
+    checkpoints[0] = frontierState
+    staleCheckpoints.clear()
+    speculated.clear()
+    speculated.or(request.restoredLines)
+    catchUpLine = -1
+    restore = request.restore
+    restoredPrefix = 0
+    restoredSuffix = -1
+  }
+
+  private fun edit(edit: HighlightRequest.Edit) {
+    generation = edit.generation
+    lineCount = edit.lineCount
+    // The hashes were computed for the text as it was set
+    restore = null
+    shiftSpeculated(edit)
+    if (catchUpLine > edit.startLine) catchUpLine = -1
+
+    val delta = edit.newEndLine - edit.oldEndLine
+    val stale = TreeMap<Int, StaleCheckpoint<S>>()
+    fun keep(line: Int, checkpoint: StaleCheckpoint<S>) {
+      // The state at the start of a line only depends on the lines before it
+      if (line <= edit.startLine) stale[line] = checkpoint
+      else if (line > edit.oldEndLine) stale[line + delta] = checkpoint
+    }
+
+    for ((line, checkpoint) in staleCheckpoints) keep(line, checkpoint)
+    if (edit.startLine < frontier) {
+      val after = checkpoints.tailMap(edit.startLine, false)
+      for ((line, state) in after) keep(line, StaleCheckpoint(state, isRunEnd = false))
+      keep(frontier, StaleCheckpoint(frontierState, isRunEnd = true))
+      after.clear()
+
+      frontier = checkpoints.lastKey()
+      frontierState = checkpoints.getValue(frontier)
+    }
+
+    // The lines after the checkpoint holding the edit were not highlighted from it anymore
+    stale.floorEntry(edit.startLine)?.let { (line, checkpoint) ->
+      if (line >= frontier) stale[line] = StaleCheckpoint(checkpoint.state, isRunEnd = true)
+    }
+    staleCheckpoints.clear()
+    staleCheckpoints.putAll(stale.tailMap(frontier, true))
+  }
+
+  /** Moves the marks of the speculated lines with the lines after [edit]. */
+  private fun shiftSpeculated(edit: HighlightRequest.Edit) {
+    val after = speculated.get(edit.oldEndLine + 1, maxOf(speculated.length(), edit.oldEndLine + 1))
+    speculated.clear(edit.startLine + 1, maxOf(speculated.length(), edit.startLine + 1))
+    var i = after.nextSetBit(0)
+    while (i >= 0) {
+      speculated.set(edit.newEndLine + 1 + i)
+      i = after.nextSetBit(i + 1)
+    }
+  }
+
+  /** Whether the lines [first]..[last] show spans highlighted exactly before the last edits. */
+  private fun isHighlightedBeforeEdits(first: Int, last: Int): Boolean {
+    val checkpoint = staleCheckpoints.floorEntry(first) ?: return false
+    val next = staleCheckpoints.higherKey(checkpoint.key) ?: return false
+    return !checkpoint.value.isRunEnd && next > last
+  }
+
+  private suspend fun step() {
+    restore?.let {
+      restore(it)
+      return
+    }
+    val last = viewportLast.coerceIn(0, lineCount - 1)
+    val first = viewportFirst.coerceIn(0, last)
+
+    if (first - frontier > MAX_CATCH_UP && !isHighlightedBeforeEdits(first, last)) {
+      val margin = last - first + 1
+      val from = (first - margin).coerceAtLeast(frontier)
+      val to = (last + margin).coerceAtMost(lineCount - 1)
+      if (speculated.nextClearBit(from) <= to) {
+        speculate(from, to)
+        return
+      }
+    }
+    highlightExact()
+  }
+
+  /**
+   * Shows the spans of [highlight] for the next lines whose hashes still match,
+   * from the start of the text, then from its end.
+   */
+  private suspend fun restore(highlight: CachedHighlight) {
+    val cachedCount = highlight.lines.size
+    val common = minOf(lineCount, cachedCount)
+    if (restoredSuffix < 0) {
+      val from = restoredPrefix
+      val count = minOf(SLICE_LINES, common - from)
+      val texts = readLines(generation, from, count) ?: return
+      var matched = 0
+      while (matched < count) {
+        if (highlight.lineHashes[from + matched] != HighlightCache.hashLine(texts[matched])) break
+        matched++
+      }
+      publishRestored(from, highlight.lines.subList(from, from + matched))
+      restoredPrefix += matched
+      if (matched < count || restoredPrefix == common) restoredSuffix = 0
+      return
+    }
+
+    val count = minOf(SLICE_LINES, common - restoredPrefix - restoredSuffix)
+    if (count <= 0) {
+      restore = null
+      return
+    }
+    val end = lineCount - restoredSuffix
+    val cachedEnd = cachedCount - restoredSuffix
+    val texts = readLines(generation, end - count, count) ?: return
+    var matched = 0
+    while (matched < count) {
+      val hash = HighlightCache.hashLine(texts[count - 1 - matched])
+      if (highlight.lineHashes[cachedEnd - 1 - matched] != hash) break
+      matched++
+    }
+    publishRestored(end - matched, highlight.lines.subList(cachedEnd - matched, cachedEnd))
+    restoredSuffix += matched
+    if (matched < count) restore = null
+  }
+
+  private fun publishRestored(startLine: Int, lines: List<List<Span>>) {
+    if (lines.isEmpty()) return
+    speculated.set(startLine, startLine + lines.size)
+    publish(SpanBatch(generation, startLine, lines, restored = true))
+  }
+
+  private suspend fun highlightExact() {
+    val startLine = frontier
+    val endLine = minOf(lineCount, startLine + SLICE_LINES)
+    val texts = readLines(generation, startLine, endLine - startLine) ?: return
+    val lines = ArrayList<List<Span>>(endLine - startLine)
+    var state = frontierState
+
+    var line = startLine
+    while (line < endLine) {
+      val stale = staleCheckpoints.remove(line)
+      if (stale != null && !stale.isRunEnd && tokenizer.stateEquals(state, stale.state)) {
+        // The lines from here were highlighted from this very state before the edits
+        publish(SpanBatch(generation, startLine, lines))
+        skipUnchangedLines(line, state)
+        return
+      }
+
+      if (line - checkpoints.lastKey() >= CHECKPOINT_INTERVAL) checkpoints[line] = state
+      val tokenized = tokenizer.tokenizeLine(texts[line - startLine], state)
+      lines.add(tokenized.spans)
+      state = tokenized.endState
+      line++
+    }
+
+    frontier = line
+    frontierState = state
+    speculated.clear(startLine, line)
+    publish(SpanBatch(generation, startLine, lines))
+  }
+
+  /** Moves the frontier over the lines after [line] that the edits did not change. */
+  private fun skipUnchangedLines(line: Int, state: S) {
+    var current = line
+    var currentState = state
+    checkpoints[current] = currentState
+    val speculatedLine = speculated.nextSetBit(line).let { if (it < 0) Int.MAX_VALUE else it }
+    while (true) {
+      val (next, checkpoint) = staleCheckpoints.higherEntry(current) ?: break
+      // Speculative spans replaced some of these lines, they have to be highlighted again
+      if (speculatedLine < next) break
+      staleCheckpoints.remove(next)
+      current = next
+      currentState = checkpoint.state
+      if (checkpoint.isRunEnd) break
+      checkpoints[current] = currentState
+    }
+    frontier = current
+    frontierState = currentState
+  }
+
+  /**
+   * Tokenizes the lines [from]..[to] from a nearby old checkpoint, or the initial
+   * state, catching up [SLICE_LINES] lines per call.
+   */
+  private suspend fun speculate(from: Int, to: Int) {
+    var line = from
+    var state = tokenizer.initialState
+    // An old checkpoint is likely still right, and better than no state at all
+    val stale = staleCheckpoints.floorEntry(from)
+    if (stale != null && from - stale.key <= MAX_CATCH_UP) {
+      line = stale.key
+      state = stale.value.state
+    }
+    // Resumes the catch up of the earlier slices
+    if (catchUpLine in line..from) {
+      line = catchUpLine
+      state = catchUpState
+    }
+
+    val catchUpEnd = minOf(from, line + SLICE_LINES)
+    val startLine = line
+    val endLine = if (catchUpEnd < from) catchUpEnd else to + 1
+    val texts = readLines(generation, startLine, endLine - startLine) ?: return
+    while (line < catchUpEnd) {
+      state = tokenizer.tokenizeLine(texts[line - startLine], state).endState
+      line++
+    }
+    if (line < from) {
+      catchUpLine = line
+      catchUpState = state
+      return
+    }
+    catchUpLine = -1
+
+    val lines = ArrayList<List<Span>>(to - from + 1)
+    while (line <= to) {
+      val tokenized = tokenizer.tokenizeLine(texts[line - startLine], state)
+      lines.add(tokenized.spans)
+      state = tokenized.endState
+      line++
+    }
+    speculated.set(from, to + 1)
+    publish(SpanBatch(generation, from, lines))
+  }
+
+  companion object {
+    const val CHECKPOINT_INTERVAL = 64
+    const val SLICE_LINES = 128
+    /** Distance from the frontier up to which visible lines wait for their exact state. */
+    const val MAX_CATCH_UP = 2000
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.highlight
+
+import io.github.rosemoe.sora.text.Content
+
+/** Lengths of the lines of a text, in chars, telling whether the text is minified. */
+class LineLengths(
+  val length: Int,
+  val lineCount: Int,
+  val averageLength: Int,
+  val maxLength: Int,
+) {
+
+  /** Whether the text is minified, or has a line too long to be laid out comfortably. */
+  val isMinified: Boolean
+    get() =
+      maxLength >= LONG_LINE_LENGTH ||
+        (length >= MIN_MINIFIED_LENGTH && averageLength >= MINIFIED_AVERAGE_LENGTH)
+
+  companion object {
+    /** Length from which a text can be considered minified by its average line length. */
+    const val MIN_MINIFIED_LENGTH = 16 * 1024
+    /** Average line length from which a text is considered minified. */
+    const val MINIFIED_AVERAGE_LENGTH = 500
+    /** Length from which a single line makes a text considered minified. */
+    const val LONG_LINE_LENGTH = 10_000
+
+    /** Measures the lines of [content]. Must be called from the thread that edits it. */
+    fun of(content: Content): LineLengths {
+      val lineCount = content.lineCount
+      var maxLength = 0
+      for (line in 0 until lineCount) maxLength = maxOf(maxLength, content.getColumnCount(line))
+      return LineLengths(content.length, lineCount, content.length / lineCount, maxLength)
+    }
+  }
+}
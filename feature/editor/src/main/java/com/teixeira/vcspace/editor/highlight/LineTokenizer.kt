@@ -0,0 +1,104 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.highlight
+
+import io.github.rosemoe.sora.lang.styling.Span
+import io.github.rosemoe.sora.lang.styling.SpanFactory
+import io.github.rosemoe.sora.lang.styling.TextStyle
+import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
+import java.time.Duration
+import org.eclipse.tm4e.core.grammar.IGrammar
+import org.eclipse.tm4e.core.grammar.IStateStack
+
+/** Tokenizes a text line after line, each line from the state the previous one ended in. */
+interface LineTokenizer<S> {
+
+  val initialState: S
+
+  /** Tokenizes [line], without its line separator, starting in [state]. */
+  fun tokenizeLine(line: String, state: S): TokenizedLine<S>
+
+  fun stateEquals(a: S, b: S): Boolean
+}
+
+/** Spans of a line and the state the line ends in. */
+class TokenizedLine<S>(val endState: S, val spans: List<Span>)
+
+/**
+ * [LineTokenizer] of a TextMate [grammar]. A line gets at most [LINE_TIME_BUDGET_MILLIS]
+ * and [MAX_TOKENIZED_LENGTH] chars of tokenization, the rest of it is plain text.
+ */
+class TextMateLineTokenizer(private val grammar: IGrammar) : LineTokenizer<IStateStack?> {
+
+  override val initialState: IStateStack? = null
+
+  override fun tokenizeLine(line: String, state: IStateStack?): TokenizedLine<IStateStack?> {
+    if (line.length <= CHUNK_LENGTH) {
+      val timeLimit = Duration.ofMillis(LINE_TIME_BUDGET_MILLIS)
+      val result = grammar.tokenizeLine2(line + "\n", state, timeLimit)
+      val spans = ArrayList<Span>(result.tokens.size / 2 + 1)
+      addSpans(spans, result.tokens, 0)
+      return TokenizedLine(if (result.isStoppedEarly) state else result.ruleStack, spans)
+    }
+
+    val spans = ArrayList<Span>()
+    val deadline = System.nanoTime() + LINE_TIME_BUDGET_MILLIS * 1_000_000
+    val end = minOf(line.length, MAX_TOKENIZED_LENGTH)
+    var chunkState = state
+    var start = 0
+    while (start < end) {
+      val remaining = deadline - System.nanoTime()
+      if (remaining <= 0) break
+
+      val chunkEnd = minOf(start + CHUNK_LENGTH, end)
+      val isLast = chunkEnd == line.length
+      val chunk = line.substring(start, chunkEnd) + if (isLast) "\n" else ""
+      val result = grammar.tokenizeLine2(chunk, chunkState, Duration.ofNanos(remaining))
+      addSpans(spans, result.tokens, start)
+      start = chunkEnd
+      if (result.isStoppedEarly) break
+      chunkState = result.ruleStack
+    }
+
+    if (start < line.length) {
+      // Out of budget, the rest of the line is plain text and the next line starts afresh
+      spans.add(SpanFactory.obtain(start, plainStyle()))
+      return TokenizedLine(state, spans)
+    }
+    return TokenizedLine(chunkState, spans)
+  }
+
+  private fun addSpans(spans: MutableList<Span>, tokens: IntArray, offset: Int) {
+    if (tokens.isEmpty() || tokens[0] != 0) spans.add(SpanFactory.obtain(offset, plainStyle()))
+    for (i in tokens.indices step 2) {
+      spans.add(SpanFactory.obtain(offset + tokens[i], TextMateStyles.styleOf(tokens[i + 1])))
+    }
+  }
+
+  private fun plainStyle(): Long = TextStyle.makeStyle(EditorColorScheme.TEXT_NORMAL)
+
+  override fun stateEquals(a: IStateStack?, b: IStateStack?): Boolean {
+    return a == b
+  }
+
+  companion object {
+    const val CHUNK_LENGTH = 2_000
+    /** Number of chars of a line that are tokenized, the rest is plain text. */
+    const val MAX_TOKENIZED_LENGTH = 20_000
+    /** Time a line may be tokenized for, the rest of it is plain text. */
+    const val LINE_TIME_BUDGET_MILLIS = 50L
+  }
+}
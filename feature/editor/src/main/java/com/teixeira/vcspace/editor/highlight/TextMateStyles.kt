@@ -0,0 +1,50 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package com.teixeira.vcspace.editor.highlight
+
+import io.github.rosemoe.sora.lang.styling.TextStyle
+
+/**
+ * Styles of TextMate tokens, decoded from their metadata with the binary layout of
+ * vscode-textmate rather than through the internal classes of tm4e.
+ */
+internal object TextMateStyles {
+
+  /** Colors of the theme are registered after the ids of the editor colors. */
+  const val THEME_COLOR_OFFSET = 255
+
+  private const val FONT_STYLE_MASK = 0x00007800
+  private const val FONT_STYLE_OFFSET = 11
+  private const val FOREGROUND_MASK = 0x00FF8000
+  private const val FOREGROUND_OFFSET = 15
+
+  private const val ITALIC = 1
+  private const val BOLD = 2
+
+  /** Style of a token with the given [metadata]. */
+  fun styleOf(metadata: Int): Long {
+    val foreground = (metadata and FOREGROUND_MASK) ushr FOREGROUND_OFFSET
+    val fontStyle = (metadata and FONT_STYLE_MASK) ushr FONT_STYLE_OFFSET
+    return TextStyle.makeStyle(
+      foreground + THEME_COLOR_OFFSET,
+      0,
+      fontStyle and BOLD != 0,
+      fontStyle and ITALIC != 0,
+      false,
+    )
+  }
+}
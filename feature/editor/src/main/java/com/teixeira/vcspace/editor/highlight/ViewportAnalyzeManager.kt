@@ -0,0 +1,272 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.highlight
+
+import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import io.github.rosemoe.sora.lang.analysis.AnalyzeManager
+import io.github.rosemoe.sora.lang.analysis.StyleReceiver
+import io.github.rosemoe.sora.lang.styling.LockedSpans
+import io.github.rosemoe.sora.lang.styling.Span
+import io.github.rosemoe.sora.lang.styling.SpanFactory
+import io.github.rosemoe.sora.lang.styling.Styles
+import io.github.rosemoe.sora.lang.styling.TextStyle
+import io.github.rosemoe.sora.text.CharPosition
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.text.ContentReference
+import io.github.rosemoe.sora.widget.schemes.EditorColorScheme
+import java.util.BitSet
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+/** Metrics of a [ViewportAnalyzeManager]. */
+data class HighlightMetrics(
+  val queueDepth: Int = 0,
+  /** Time from the text being set to the first colored visible line, `null` until then. */
+  val firstViewportMillis: Long? = null,
+  /** Number of lines shown from a [CachedHighlight] since the text was set. */
+  val restoredLines: Int = 0,
+  val isComplete: Boolean = false,
+)
+
+/**
+ * Analyzer that highlights the visible lines first, told by [setViewport], through a
+ * [HighlightScheduler]. Spans are tagged with the generation of the text and moved over the
+ * edits made since before they are applied. Must be used from the main thread.
+ */
+class ViewportAnalyzeManager<S>(private val tokenizer: LineTokenizer<S>) : AnalyzeManager {
+
+  /** Lines [startLine]..[oldEndLine] were replaced by the lines [startLine]..[newEndLine]. */
+  private class LineEdit(
+    val generation: Int,
+    val startLine: Int,
+    val oldEndLine: Int,
+    val newEndLine: Int,
+  )
+
+  private val handler = Handler(Looper.getMainLooper())
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+  private var receiver: StyleReceiver? = null
+  private var content: Content? = null
+  private var styles: Styles? = null
+
+  private var requests: Channel<HighlightRequest>? = null
+  private var job: Job? = null
+
+  private var generation = 0
+  /** Generation of the last reset, spans of earlier texts are dropped. */
+  private var resetGeneration = 0
+  /** Edits whose spans may still be on the way, oldest first. */
+  private val edits = ArrayDeque<LineEdit>()
+
+  private var viewportFirst = 0
+  private var viewportLast = 0
+  private var resetTime = 0L
+
+  private val _metrics = MutableStateFlow(HighlightMetrics())
+  val metrics: StateFlow<HighlightMetrics> = _metrics.asStateFlow()
+
+  /** Spans of an earlier session shown by the next [reset], then dropped. */
+  var restoredHighlight: CachedHighlight? = null
+
+  override fun setReceiver(receiver: StyleReceiver?) {
+    this.receiver = receiver
+  }
+
+  override fun reset(content: ContentReference, extraArguments: Bundle) {
+    stop()
+    val text = content.reference
+    this.content = text
+
+    generation++
+    resetGeneration = generation
+    edits.clear()
+    resetTime = SystemClock.uptimeMillis()
+
+    val lineCount = text.lineCount
+    val highlight = restoredHighlight
+    restoredHighlight = null
+    // The spans of an unchanged file are shown right away, else the scheduler matches the lines
+    val restoredSpans =
+      if (highlight != null && highlight.matchesFile && highlight.lines.size == lineCount) {
+        highlight.lines
+      } else null
+    val restored = BitSet(lineCount)
+    if (restoredSpans != null) restored.set(0, lineCount)
+    _metrics.value =
+      HighlightMetrics(queueDepth = lineCount, restoredLines = restored.cardinality())
+
+    val spans = LockedSpans()
+    val modifier = spans.modify()
+    for (line in 0 until lineCount) {
+      modifier.addLineAt(line, restoredSpans?.get(line) ?: listOf(defaultSpan()))
+    }
+    val styles = Styles(spans)
+    this.styles = styles
+    receiver?.setStyles(this, styles)
+
+    val requests = Channel<HighlightRequest>(Channel.UNLIMITED)
+    this.requests = requests
+    val restore = highlight.takeIf { restoredSpans == null }
+    requests.trySend(HighlightRequest.Reset(generation, lineCount, restored, restore))
+    requests.trySend(HighlightRequest.Viewport(viewportFirst, viewportLast))
+
+    val scheduler =
+      HighlightScheduler(
+        tokenizer,
+        readLines = ::readLines,
+        publish = { batch -> handler.post { apply(batch) } },
+        onProgress = { generation, depth -> handler.post { onProgress(generation, depth) } },
+      )
+    job = scope.launch { scheduler.run(requests) }
+  }
+
+  /** Lines [from] until `from + count` of the text, `null` if it changed after [generation]. */
+  private suspend fun readLines(generation: Int, from: Int, count: Int): List<String>? {
+    return withContext(Dispatchers.Main) {
+      val content = content
+      if (content == null || generation != this@ViewportAnalyzeManager.generation) null
+      else List(count) { content.getLine(from + it).toString() }
+    }
+  }
+
+  private fun onProgress(generation: Int, queueDepth: Int) {
+    // The depth of an older text is still worth showing, but only the latest one can be complete
+    val isComplete = queueDepth == 0 && generation == this.generation
+    _metrics.update { it.copy(queueDepth = queueDepth, isComplete = isComplete) }
+  }
+
+  /** The spans to store in a [HighlightCache], `null` while the highlighting is not complete. */
+  fun exportHighlight(): CachedHighlight? {
+    val content = content ?: return null
+    val styles = styles ?: return null
+    if (!_metrics.value.isComplete || edits.isNotEmpty()) return null
+
+    val reader = styles.spans.read()
+    val lineCount = minOf(content.lineCount, styles.spans.lineCount)
+    val hashes = IntArray(lineCount) { HighlightCache.hashLine(content.getLine(it)) }
+    // Copied, as the editor recycles its spans
+    val lines = List(lineCount) { line -> reader.getSpansOnLine(line).map { it.copy() } }
+    return CachedHighlight(hashes, lines, matchesFile = true)
+  }
+
+  override fun insert(start: CharPosition, end: CharPosition, insertedContent: CharSequence) {
+    // Line start.line was split into the lines start.line..end.line
+    onEdit(start.line, start.line, end.line)
+  }
+
+  override fun delete(start: CharPosition, end: CharPosition, deletedContent: CharSequence) {
+    // Lines start.line..end.line were joined into line start.line
+    onEdit(start.line, end.line, start.line)
+  }
+
+  private fun onEdit(startLine: Int, oldEnd: Int, newEnd: Int) {
+    val content = content ?: return
+    generation++
+    edits.addLast(LineEdit(generation, startLine, oldEnd, newEnd))
+    _metrics.update { it.copy(isComplete = false) }
+    requests?.trySend(
+      HighlightRequest.Edit(generation, content.lineCount, startLine, oldEnd, newEnd)
+    )
+  }
+
+  fun setViewport(firstLine: Int, lastLine: Int) {
+    if (firstLine == viewportFirst && lastLine == viewportLast) return
+    viewportFirst = firstLine
+    viewportLast = lastLine
+    requests?.trySend(HighlightRequest.Viewport(firstLine, lastLine))
+  }
+
+  override fun rerun() {
+    val content = content ?: return
+    // A new generation, so the progress of the earlier highlighting cannot complete this one
+    generation++
+    _metrics.update { it.copy(isComplete = false) }
+    requests?.trySend(HighlightRequest.Reset(generation, content.lineCount))
+    requests?.trySend(HighlightRequest.Viewport(viewportFirst, viewportLast))
+  }
+
+  override fun destroy() {
+    stop()
+    scope.cancel()
+    receiver = null
+    content = null
+    styles = null
+  }
+
+  private fun stop() {
+    requests?.close()
+    requests = null
+    job?.cancel()
+    job = null
+  }
+
+  private fun apply(batch: SpanBatch) {
+    val styles = styles ?: return
+    if (batch.generation < resetGeneration) return
+
+    // Edits made while the spans were on the way moved or changed their lines
+    var lines = batch.lines.mapIndexed { i, spans -> batch.startLine + i to spans }
+    for (edit in edits) {
+      if (edit.generation <= batch.generation) continue
+      val delta = edit.newEndLine - edit.oldEndLine
+      lines =
+        lines.mapNotNull { (line, spans) ->
+          when {
+            line < edit.startLine -> line to spans
+            line <= edit.oldEndLine -> null
+            else -> line + delta to spans
+          }
+        }
+    }
+    while (edits.isNotEmpty() && edits.first().generation <= batch.generation) edits.removeFirst()
+
+    val modifier = styles.spans.modify()
+    val lineCount = styles.spans.lineCount
+    var showsViewport = false
+    for ((line, spans) in lines) {
+      if (line >= lineCount) continue
+      modifier.setSpansOnLine(line, spans)
+      if (line in viewportFirst..viewportLast) showsViewport = true
+    }
+    receiver?.setStyles(this, styles)
+
+    if (batch.restored) {
+      _metrics.update { it.copy(restoredLines = it.restoredLines + batch.lines.size) }
+    }
+    if (showsViewport && _metrics.value.firstViewportMillis == null) {
+      val elapsed = SystemClock.uptimeMillis() - resetTime
+      _metrics.update { it.copy(firstViewportMillis = elapsed) }
+    }
+  }
+
+  private fun defaultSpan(): Span {
+    return SpanFactory.obtain(0, TextStyle.makeStyle(EditorColorScheme.TEXT_NORMAL))
+  }
+}
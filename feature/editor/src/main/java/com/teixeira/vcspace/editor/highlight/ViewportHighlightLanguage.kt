@@ -0,0 +1,56 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.highlight
+
+import io.github.rosemoe.sora.lang.Language
+import io.github.rosemoe.sora.lang.analysis.AnalyzeManager
+import io.github.rosemoe.sora.langs.textmate.TextMateLanguage
+import kotlinx.coroutines.flow.StateFlow
+import org.eclipse.tm4e.core.grammar.IGrammar
+
+/**
+ * A [TextMateLanguage] highlighted by a [ViewportAnalyzeManager], starting from the
+ * [restored] spans of an earlier session.
+ */
+class ViewportHighlightLanguage(
+  val delegate: TextMateLanguage,
+  grammar: IGrammar,
+  restored: CachedHighlight? = null,
+) : Language by delegate {
+
+  private val analyzeManager =
+    ViewportAnalyzeManager(TextMateLineTokenizer(grammar)).apply { restoredHighlight = restored }
+
+  val metrics: StateFlow<HighlightMetrics>
+    get() = analyzeManager.metrics
+
+  override fun getAnalyzeManager(): AnalyzeManager = analyzeManager
+
+  fun setViewport(firstLine: Int, lastLine: Int) {
+    analyzeManager.setViewport(firstLine, lastLine)
+  }
+
+  fun exportHighlight(): CachedHighlight? = analyzeManager.exportHighlight()
+
+  override fun destroy() {
+    analyzeManager.destroy()
+    delegate.destroy()
+  }
+}
+
+/** The TextMate language of this language, whether its highlighting is wrapped or not. */
+val Language.textMateLanguage: TextMateLanguage?
+  get() = this as? TextMateLanguage ?: (this as? ViewportHighlightLanguage)?.delegate
@@ -0,0 +1,94 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Replaces the content of this file atomically, through a temporary sibling file renamed over it.
+ * If none can be created, the file is overwritten in place unless [inPlaceFallback] is false.
+ */
+inline fun <T> File.writeAtomically(
+  inPlaceFallback: Boolean = true,
+  write: (channel: FileChannel) -> T,
+): T {
+  val target = resolveTarget(this)
+  val tempFile = File(target.parentFile, ".${target.name}.${System.nanoTime()}.tmp")
+  val output =
+    try {
+      FileOutputStream(tempFile)
+    } catch (e: IOException) {
+      if (!inPlaceFallback) throw e
+      return writeInPlace(target, write)
+    }
+
+  try {
+    val result =
+      output.use {
+        val channel = it.channel
+        val result = write(channel)
+        channel.force(true)
+        result
+      }
+
+    copyPermissions(target, tempFile)
+    Files.move(
+      tempFile.toPath(),
+      target.toPath(),
+      StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE,
+    )
+    return result
+  } catch (e: Throwable) {
+    tempFile.delete()
+    throw e
+  }
+}
+
+@PublishedApi
+internal fun resolveTarget(file: File): File {
+  return if (file.exists()) file.toPath().toRealPath().toFile() else file.absoluteFile
+}
+
+@PublishedApi
+internal inline fun <T> writeInPlace(target: File, write: (channel: FileChannel) -> T): T {
+  return RandomAccessFile(target, "rw").use { file ->
+    val channel = file.channel
+    val result = write(channel)
+    channel.truncate(channel.position())
+    channel.force(true)
+    result
+  }
+}
+
+/** Gives [tempFile] the POSIX permissions of [target], e.g. to keep a script executable. */
+@PublishedApi
+internal fun copyPermissions(target: File, tempFile: File) {
+  if (!target.exists()) return
+  try {
+    Files.setPosixFilePermissions(tempFile.toPath(), Files.getPosixFilePermissions(target.toPath()))
+  } catch (e: UnsupportedOperationException) {
+    // The file system has no POSIX permissions, e.g. shared storage
+  } catch (e: IOException) {
+    // The file system refuses them, e.g. shared storage
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import java.io.Closeable
+import java.io.File
+import java.io.FileInputStream
+import java.io.InputStreamReader
+import java.nio.charset.Charset
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+
+/** Decodes a text file in chunks, so it is never held as a single [String]. */
+class ChunkedTextReader(
+  file: File,
+  charset: Charset = Charsets.UTF_8,
+  private val chunkSize: Int = DEFAULT_CHUNK_SIZE,
+) : Closeable {
+
+  private val input = FileInputStream(file)
+  private val checkedInput = CheckedInputStream(input, CRC32())
+  private val reader = InputStreamReader(checkedInput, charset)
+  private val buffer = CharArray(chunkSize + 1)
+  private var pending = 0
+
+  val totalBytes: Long = file.length()
+
+  val bytesRead: Long
+    get() = input.channel.position()
+
+  /** CRC32 of the bytes read so far, the checksum of the file once it was fully read. */
+  val checksum: Long
+    get() = checkedInput.checksum.value
+
+  /** Reading progress in the range `0..100`. */
+  val progress: Int
+    get() = if (totalBytes <= 0L) 100 else (bytesRead * 100 / totalBytes).toInt().coerceIn(0, 100)
+
+  /** Reads the next chunk, `null` at the end of the file. */
+  fun readChunk(): String? {
+    var length = pending
+    pending = 0
+
+    while (length < chunkSize) {
+      val read = reader.read(buffer, length, chunkSize - length)
+      if (read == -1) break
+      length += read
+    }
+
+    if (length == 0) return null
+
+    if (length == chunkSize && buffer[length - 1] == '\r') {
+      // Keep the carriage return for the next chunk, it may be followed by '\n'.
+      length--
+      pending = 1
+    }
+
+    val chunk = String(buffer, 0, length)
+    if (pending == 1) buffer[0] = '\r'
+    return chunk
+  }
+
+  override fun close() {
+    reader.close()
+  }
+
+  companion object {
+    const val DEFAULT_CHUNK_SIZE = 128 * 1024
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import com.teixeira.vcspace.editor.document.TextSnapshot
+import io.github.rosemoe.sora.text.Content
+import io.github.rosemoe.sora.text.LineSeparator
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.CharBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.charset.CodingErrorAction
+import java.util.zip.CRC32
+
+/** Saves a text line by line, without materialising it as a single [String]. */
+class ContentWriter(
+  charset: Charset = Charsets.UTF_8,
+  bufferSize: Int = DEFAULT_BUFFER_SIZE,
+) {
+
+  private val encoder =
+    charset
+      .newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE)
+  private val buffer = ByteBuffer.allocateDirect(bufferSize)
+  private val checksum = CRC32()
+
+  @Synchronized
+  fun write(content: Content, file: File): SaveStats {
+    return write(file) { channel ->
+      for (i in 0 until content.lineCount) {
+        val line = content.getLine(i)
+        encode(CharBuffer.wrap(line), channel, endOfInput = false)
+
+        val separator = line.lineSeparator
+        if (separator != LineSeparator.NONE) {
+          encode(CharBuffer.wrap(separator.content), channel, endOfInput = false)
+        }
+      }
+    }
+  }
+
+  /** A snapshot, unlike a [Content], can be written while the document is being edited. */
+  @Synchronized
+  fun write(snapshot: TextSnapshot, file: File): SaveStats {
+    return write(file) { channel ->
+      snapshot.forEachLine { encode(CharBuffer.wrap(it), channel, endOfInput = false) }
+    }
+  }
+
+  private inline fun write(file: File, encodeLines: (FileChannel) -> Unit): SaveStats {
+    val startTime = System.nanoTime()
+    val bytes = file.writeAtomically { channel -> encodeTo(channel, encodeLines) }
+    return SaveStats(bytes, System.nanoTime() - startTime, checksum.value)
+  }
+
+  private inline fun encodeTo(channel: FileChannel, encodeLines: (FileChannel) -> Unit): Long {
+    encoder.reset()
+    buffer.clear()
+    checksum.reset()
+
+    encodeLines(channel)
+
+    encode(CharBuffer.allocate(0), channel, endOfInput = true)
+    while (encoder.flush(buffer).isOverflow) drain(channel)
+    drain(channel)
+
+    return channel.position()
+  }
+
+  private fun encode(input: CharBuffer, channel: FileChannel, endOfInput: Boolean) {
+    while (encoder.encode(input, buffer, endOfInput).isOverflow) drain(channel)
+  }
+
+  private fun drain(channel: FileChannel) {
+    buffer.flip()
+    checksum.update(buffer.duplicate())
+    while (buffer.hasRemaining()) channel.write(buffer)
+    buffer.clear()
+  }
+
+  data class SaveStats(val bytes: Long, val durationNanos: Long, val checksum: Long) {
+
+    val durationMillis: Long
+      get() = durationNanos / 1_000_000
+
+    val bytesPerSecond: Long
+      get() = if (durationNanos <= 0) bytes else bytes * 1_000_000_000 / durationNanos
+  }
+
+  companion object {
+    const val DEFAULT_BUFFER_SIZE = 64 * 1024
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import java.io.File
+import java.io.FileInputStream
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+
+/**
+ * State of a file on disk as last seen by the editor. The [checksum] tells a real change from a
+ * touch when the size or the modification time differ.
+ */
+data class FileStamp(val size: Long, val lastModified: Long, val checksum: Long) {
+
+  /** Whether [file] has the same size and modification time as this stamp. */
+  fun matchesMetadata(file: File): Boolean {
+    return file.length() == size && file.lastModified() == lastModified
+  }
+
+  companion object {
+
+    /** Reads [file] to compute its stamp. Must be called from a background thread. */
+    fun of(file: File): FileStamp {
+      val size = file.length()
+      val lastModified = file.lastModified()
+      val checksum =
+        CheckedInputStream(FileInputStream(file), CRC32()).use { input ->
+          val buffer = ByteArray(64 * 1024)
+          while (input.read(buffer) != -1) {
+            // Only the checksum is needed
+          }
+          input.checksum.value
+        }
+      return FileStamp(size, lastModified, checksum)
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import android.os.FileObserver
+import java.io.Closeable
+import java.io.File
+
+/**
+ * Notifies listeners, on the observer thread, when watched files are changed by someone else. One
+ * [FileObserver] serves all the watched files of a directory.
+ */
+object FileWatcher {
+
+  private val observers = HashMap<String, DirectoryObserver>()
+
+  /** Returns a handle that stops the watch when closed. */
+  @Synchronized
+  fun watch(file: File, listener: (File) -> Unit): Closeable {
+    val directory = file.absoluteFile.parentFile ?: return Closeable {}
+    val observer =
+      observers.getOrPut(directory.path) { DirectoryObserver(directory).also { it.startWatching() } }
+    observer.add(file.name, listener)
+
+    return Closeable { unwatch(directory, file.name, listener) }
+  }
+
+  @Synchronized
+  private fun unwatch(directory: File, name: String, listener: (File) -> Unit) {
+    val observer = observers[directory.path] ?: return
+    if (observer.remove(name, listener)) {
+      observer.stopWatching()
+      observers.remove(directory.path)
+    }
+  }
+
+  @Suppress("DEPRECATION")
+  private class DirectoryObserver(private val directory: File) :
+    FileObserver(directory.path, EVENTS) {
+
+    private val listeners = HashMap<String, MutableList<(File) -> Unit>>()
+
+    @Synchronized
+    fun add(name: String, listener: (File) -> Unit) {
+      listeners.getOrPut(name) { mutableListOf() }.add(listener)
+    }
+
+    @Synchronized
+    fun remove(name: String, listener: (File) -> Unit): Boolean {
+      val fileListeners = listeners[name] ?: return listeners.isEmpty()
+      fileListeners.remove(listener)
+      if (fileListeners.isEmpty()) listeners.remove(name)
+      return listeners.isEmpty()
+    }
+
+    override fun onEvent(event: Int, path: String?) {
+      if (path == null) return
+      val fileListeners = synchronized(this) { listeners[path]?.toList() } ?: return
+
+      val file = File(directory, path)
+      fileListeners.forEach { it(file) }
+    }
+  }
+
+  private const val EVENTS =
+    FileObserver.CLOSE_WRITE or FileObserver.MOVED_TO or FileObserver.DELETE
+}
@@ -0,0 +1,337 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+
+/**
+ * Memory-mapped view of a text file too large to be loaded into the editor, with a sparse index of
+ * its line starts.
+ */
+class MappedTextFile(
+  val file: File,
+  val charset: Charset = Charsets.UTF_8,
+) : Closeable {
+
+  private val channel: FileChannel = RandomAccessFile(file, "r").channel
+  private val regions: Array<MappedByteBuffer>
+
+  /** Indexed lines, ascending from line 0, and the byte offsets of their starts. */
+  private var indexLines = IntArray(0)
+  private var indexOffsets = LongArray(0)
+  private var indexed = false
+
+  val size: Long
+
+  /** Only valid after [buildIndex]. */
+  var lineCount: Int = 0
+    private set
+
+  init {
+    try {
+      size = channel.size()
+      val regionCount = ((size + REGION_SIZE - 1) / REGION_SIZE).toInt()
+      regions =
+        Array(regionCount) { i ->
+          val position = i.toLong() * REGION_SIZE
+          channel.map(FileChannel.MapMode.READ_ONLY, position, minOf(REGION_SIZE, size - position))
+        }
+    } catch (e: IOException) {
+      channel.close()
+      throw e
+    }
+  }
+
+  /** Scans the file once to build the line index. */
+  fun buildIndex(isActive: () -> Boolean = { true }, onProgress: (Int) -> Unit = {}) {
+    val index = LineIndexBuilder()
+    var lines = 1
+    var lastProgress = 0
+
+    var position = 0L
+    while (position < size) {
+      if (position and PROGRESS_MASK == 0L) {
+        if (!isActive()) return
+        val progress = (position * 100 / size).toInt()
+        if (progress != lastProgress) {
+          lastProgress = progress
+          onProgress(progress)
+        }
+      }
+
+      if (byteAt(position) == LF) {
+        if (lines % INDEX_STRIDE == 0) index.add(lines, position + 1)
+        lines++
+      }
+      position++
+    }
+
+    setIndex(index, lines)
+    onProgress(100)
+  }
+
+  /**
+   * Builds the index of this file from the one of [previous], which [MappedTextFile.spliceTo] wrote
+   * it from with the lines [startLine] until `startLine + oldLines` replaced by [newLines] lines.
+   */
+  fun indexAfterSplice(previous: MappedTextFile, startLine: Int, oldLines: Int, newLines: Int) {
+    val index = LineIndexBuilder()
+    for (i in previous.indexLines.indices) {
+      if (previous.indexLines[i] > startLine) break
+      index.add(previous.indexLines[i], previous.indexOffsets[i])
+    }
+
+    // The replaced lines, up to the start of the first line after them
+    val endLine = startLine + newLines
+    var line = startLine
+    var position = previous.lineStartOffset(startLine)
+    while (line < endLine - 1 && position < size) {
+      if (byteAt(position) == LF) {
+        line++
+        if (line % INDEX_STRIDE == 0) index.add(line, position + 1)
+      }
+      position++
+    }
+
+    val lineDelta = newLines - oldLines
+    val byteDelta = size - previous.size
+    for (i in previous.indexLines.indices) {
+      val oldLine = previous.indexLines[i]
+      if (oldLine <= startLine || oldLine < startLine + oldLines) continue
+      index.add(oldLine + lineDelta, previous.indexOffsets[i] + byteDelta)
+    }
+    setIndex(index, previous.lineCount + lineDelta)
+  }
+
+  private fun setIndex(index: LineIndexBuilder, lines: Int) {
+    indexLines = index.lines.copyOf(index.count)
+    indexOffsets = index.offsets.copyOf(index.count)
+    lineCount = lines
+    indexed = true
+  }
+
+  private fun indexSlotOfLine(line: Int): Int {
+    var low = 0
+    var high = indexLines.size - 1
+    while (low < high) {
+      val mid = (low + high + 1) ushr 1
+      if (indexLines[mid] <= line) low = mid else high = mid - 1
+    }
+    return low
+  }
+
+  fun lineStartOffset(line: Int): Long {
+    checkIndexed()
+    val target = line.coerceIn(0, lineCount)
+    if (target == lineCount) return size
+
+    val slot = indexSlotOfLine(target)
+    var current = indexLines[slot]
+    var position = indexOffsets[slot]
+    while (current < target && position < size) {
+      if (byteAt(position) == LF) current++
+      position++
+    }
+    return position
+  }
+
+  fun lineOfOffset(offset: Long): Int {
+    checkIndexed()
+    val target = offset.coerceIn(0L, size)
+
+    var low = 0
+    var high = indexOffsets.size - 1
+    while (low < high) {
+      val mid = (low + high + 1) ushr 1
+      if (indexOffsets[mid] <= target) low = mid else high = mid - 1
+    }
+
+    var line = indexLines[low]
+    var position = indexOffsets[low]
+    while (position < target) {
+      if (byteAt(position) == LF) line++
+      position++
+    }
+    return line
+  }
+
+  /**
+   * Decodes at most [maxLines] lines or [maxBytes] bytes from [startLine]. Lines longer than
+   * [maxLineBytes] are cut.
+   */
+  fun readWindow(startLine: Int, maxLines: Int, maxBytes: Long, maxLineBytes: Int): Window {
+    val text = StringBuilder()
+    var lines = 0
+    var bytes = 0L
+    var truncated = false
+
+    var position = lineStartOffset(startLine)
+    while (startLine + lines < lineCount && lines < maxLines) {
+      var end = position
+      while (end < size && byteAt(end) != LF) end++
+      val contentEnd = if (end > position && byteAt(end - 1) == CR) end - 1 else end
+
+      val lineBytes = minOf(contentEnd - position, maxLineBytes.toLong())
+      if (lines > 0 && bytes + lineBytes > maxBytes) break
+
+      if (lines > 0) text.append(decode(position - separatorLength(position), position))
+      if (lineBytes < contentEnd - position) {
+        text.append(decode(position, charBoundary(position, position + lineBytes)))
+        truncated = true
+      } else text.append(decode(position, contentEnd))
+
+      bytes += lineBytes
+      lines++
+      position = end + 1
+    }
+    return Window(text.toString(), lines, truncated)
+  }
+
+  private fun separatorLength(lineStart: Long): Int {
+    return if (lineStart >= 2 && byteAt(lineStart - 2) == CR) 2 else 1
+  }
+
+  private fun charBoundary(lineStart: Long, offset: Long): Long {
+    if (charset != Charsets.UTF_8) return offset
+    var boundary = offset
+    // UTF-8 continuation bytes are 10xxxxxx
+    while (boundary > lineStart && byteAt(boundary).toInt() and 0xC0 == 0x80) boundary--
+    return boundary
+  }
+
+  fun lineRange(startLine: Int, count: Int): Pair<Long, Long> {
+    val start = lineStartOffset(startLine)
+    var end = lineStartOffset(startLine + count)
+    if (startLine + count < lineCount && end > start) {
+      // Drop the trailing line separator
+      end--
+      if (end > start && byteAt(end - 1) == CR) end--
+    }
+    return start to end
+  }
+
+  /** Writes this file to [target] with the bytes in `[start, end)` replaced by [replacement]. */
+  fun spliceTo(target: FileChannel, start: Long, end: Long, replacement: ByteBuffer) {
+    transferFully(0L, start, target)
+    while (replacement.hasRemaining()) target.write(replacement)
+    transferFully(end, size - end, target)
+  }
+
+  private fun transferFully(position: Long, count: Long, target: FileChannel) {
+    var transferred = 0L
+    while (transferred < count) {
+      transferred += channel.transferTo(position + transferred, count - transferred, target)
+    }
+  }
+
+  fun decode(start: Long, end: Long): String {
+    val length = (end - start).toInt()
+    if (length <= 0) return ""
+
+    val bytes = ByteArray(length)
+    var written = 0
+    var position = start
+    while (written < length) {
+      val region = regions[(position / REGION_SIZE).toInt()].duplicate()
+      val regionOffset = (position % REGION_SIZE).toInt()
+      val chunk = minOf(length - written, region.limit() - regionOffset)
+      region.position(regionOffset)
+      region.get(bytes, written, chunk)
+      written += chunk
+      position += chunk
+    }
+    return String(bytes, charset)
+  }
+
+  /** Returns the offset of the next match of [pattern] from [fromOffset], -1 if there is none. */
+  fun find(
+    pattern: ByteArray,
+    fromOffset: Long,
+    forward: Boolean = true,
+    isActive: () -> Boolean = { true },
+  ): Long {
+    if (pattern.isEmpty() || pattern.size > size) return -1L
+
+    val last = size - pattern.size
+    val step = if (forward) 1L else -1L
+    var position = fromOffset.coerceIn(0L, last)
+    val first = pattern[0]
+
+    while (position in 0L..last) {
+      if (position and PROGRESS_MASK == 0L && !isActive()) return -1L
+      if (byteAt(position) == first && matchesAt(pattern, position)) {
+        return position
+      }
+      position += step
+    }
+    return -1L
+  }
+
+  private fun matchesAt(pattern: ByteArray, position: Long): Boolean {
+    for (i in 1 until pattern.size) {
+      if (byteAt(position + i) != pattern[i]) return false
+    }
+    return true
+  }
+
+  private fun byteAt(position: Long): Byte {
+    return regions[(position / REGION_SIZE).toInt()].get((position % REGION_SIZE).toInt())
+  }
+
+  private fun checkIndexed() {
+    check(indexed) { "The line index has not been built yet" }
+  }
+
+  override fun close() {
+    channel.close()
+  }
+
+  private class LineIndexBuilder {
+    var lines = IntArray(1024)
+    var offsets = LongArray(1024)
+    var count = 1
+
+    fun add(line: Int, offset: Long) {
+      if (line == 0) return
+      if (count == lines.size) {
+        lines = lines.copyOf(count * 2)
+        offsets = offsets.copyOf(count * 2)
+      }
+      lines[count] = line
+      offsets[count] = offset
+      count++
+    }
+  }
+
+  /** Lines read by [readWindow]; if [isTruncated], some were cut. */
+  class Window(val text: String, val lineCount: Int, val isTruncated: Boolean)
+
+  companion object {
+    const val REGION_SIZE = 1L shl 30
+    const val INDEX_STRIDE = 64
+
+    private const val PROGRESS_MASK = (1L shl 20) - 1
+    private const val LF = '\n'.code.toByte()
+    private const val CR = '\r'.code.toByte()
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.journal
+
+import com.blankj.utilcode.util.PathUtils
+import com.teixeira.vcspace.editor.io.ChunkedTextReader
+import com.teixeira.vcspace.editor.document.TextSnapshot
+import com.teixeira.vcspace.editor.io.ContentWriter
+import com.teixeira.vcspace.editor.io.pathKey
+import com.teixeira.vcspace.editor.io.writeAtomically
+import com.teixeira.vcspace.utils.Logger
+import io.github.rosemoe.sora.event.ContentChangeEvent
+import io.github.rosemoe.sora.text.Content
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Write-ahead journal of the unsaved edits of one document, replayed by [recover] after a crash.
+ * The log is compacted into a snapshot in the background once it grows past [LOG_SIZE_BUDGET].
+ */
+class EditJournal(private val file: File) : Closeable {
+
+  private val key = pathKey(file.absolutePath)
+  private val logFile = File(JOURNAL_DIR, "$key.log")
+  private val snapshotFile = File(JOURNAL_DIR, "$key.snapshot")
+  /** [Base] of the snapshot, the file it was compacted against. */
+  private val baseFile = File(JOURNAL_DIR, "$key.base")
+
+  private var output: DataOutputStream? = null
+
+  val hasRecoverableEdits: Boolean
+    get() = snapshotFile.exists() || logFile.length() > HEADER_SIZE
+
+  /**
+   * Rebuilds the unsaved content of the document, `null` if there is none or the file changed on
+   * disk. Must be called from a background thread, before any new edit is recorded.
+   */
+  fun recover(): Content? {
+    return executor.submit(Callable { recoverNow() }).get()
+  }
+
+  private fun recoverNow(): Content? {
+    if (!hasRecoverableEdits) return null
+
+    return try {
+      val content = replay()?.first
+      if (content == null) discardFiles()
+      content
+    } catch (e: IOException) {
+      log.e("Failed to recover edits of ${file.path}", e)
+      discardFiles()
+      null
+    }
+  }
+
+  /** Must be called from the main thread. */
+  fun record(event: ContentChangeEvent) {
+    val start = event.changeStart
+    val end = event.changeEnd
+
+    when (event.action) {
+      ContentChangeEvent.ACTION_INSERT -> {
+        val text = event.changedText.toString()
+        submit { output ->
+          output.writeByte(RECORD_INSERT)
+          output.writeInt(start.line)
+          output.writeInt(start.column)
+          val bytes = text.toByteArray(Charsets.UTF_8)
+          output.writeInt(bytes.size)
+          output.write(bytes)
+        }
+      }
+      ContentChangeEvent.ACTION_DELETE -> {
+        submit { output ->
+          output.writeByte(RECORD_DELETE)
+          output.writeInt(start.line)
+          output.writeInt(start.column)
+          output.writeInt(end.line)
+          output.writeInt(end.column)
+        }
+      }
+    }
+  }
+
+  fun reset() {
+    executor.execute {
+      closeOutput()
+      discardFiles()
+    }
+  }
+
+  /**
+   * Forgets the journaled edits in favour of [text], the text of the document right after a save
+   * during which it was edited.
+   */
+  fun rebase(text: TextSnapshot) {
+    executor.execute {
+      closeOutput()
+      discardFiles()
+      try {
+        writeBase(Base(file.length(), file.lastModified()))
+        ContentWriter().write(text, snapshotFile)
+      } catch (e: IOException) {
+        log.e("Failed to journal edits of ${file.path}", e)
+        discardFiles()
+      }
+    }
+  }
+
+  override fun close() {
+    executor.execute { closeOutput() }
+  }
+
+  private fun submit(write: (DataOutputStream) -> Unit) {
+    executor.execute {
+      try {
+        val output = output ?: openLog()
+        write(output)
+        // Flushing is enough to survive a process crash, which is what the journal is for
+        output.flush()
+
+        if (logFile.length() > LOG_SIZE_BUDGET) compact()
+      } catch (e: IOException) {
+        log.e("Failed to journal edit of ${file.path}", e)
+        closeOutput()
+      }
+    }
+  }
+
+  private fun openLog(): DataOutputStream {
+    JOURNAL_DIR.mkdirs()
+    val exists = logFile.length() >= HEADER_SIZE
+    val output = DataOutputStream(BufferedOutputStream(FileOutputStream(logFile, exists)))
+    if (!exists) {
+      output.writeInt(MAGIC)
+      output.writeInt(VERSION)
+      output.writeLong(file.length())
+      output.writeLong(file.lastModified())
+    }
+    this.output = output
+    return output
+  }
+
+  private fun compact() {
+    closeOutput()
+    val replayed =
+      try {
+        replay()
+      } catch (e: IOException) {
+        log.e("Failed to compact journal of ${file.path}", e)
+        null
+      }
+    val (content, base) = replayed ?: return discardFiles()
+
+    // The base goes first: a snapshot is never left without it
+    writeBase(base)
+    ContentWriter().write(content, snapshotFile)
+    logFile.delete()
+    log.d("Compacted journal of ${file.path}")
+  }
+
+  private fun replay(): Pair<Content, Base>? {
+    if (snapshotFile.exists()) {
+      val base = readBase() ?: return null
+      if (!base.matches(file)) return null
+
+      val content = readInto(Content(), snapshotFile)
+      if (logFile.exists()) {
+        DataInputStream(BufferedInputStream(FileInputStream(logFile))).use { input ->
+          // The log was opened after the compaction, its own base is not the one of the snapshot
+          readHeader(input) ?: return null
+          replayRecords(input, content)
+        }
+      }
+      return content to base
+    }
+
+    if (!logFile.exists()) return null
+    DataInputStream(BufferedInputStream(FileInputStream(logFile))).use { input ->
+      val base = readHeader(input) ?: return null
+      // The file changed on disk, the logged positions no longer apply to it
+      if (!base.matches(file)) return null
+
+      val content = readInto(Content(), file)
+      replayRecords(input, content)
+      return content to base
+    }
+  }
+
+  private fun readHeader(input: DataInputStream): Base? {
+    if (input.readInt() != MAGIC || input.readInt() != VERSION) return null
+    return Base(input.readLong(), input.readLong())
+  }
+
+  /** @throws IOException if a record does not apply to [content], the journal is corrupt. */
+  private fun replayRecords(input: DataInputStream, content: Content) {
+    content.isUndoEnabled = false
+    try {
+      while (true) {
+        when (input.readByte().toInt()) {
+          RECORD_INSERT -> {
+            val line = input.readInt()
+            val column = input.readInt()
+            val length = input.readInt()
+            if (length < 0 || length > logFile.length()) throw IOException("Bad record length")
+            val bytes = ByteArray(length)
+            input.readFully(bytes)
+            content.insert(line, column, String(bytes, Charsets.UTF_8))
+          }
+          RECORD_DELETE -> {
+            content.delete(input.readInt(), input.readInt(), input.readInt(), input.readInt())
+          }
+          else -> break
+        }
+      }
+    } catch (e: EOFException) {
+      // A crash can leave the last record incomplete, everything before it is still valid
+    } catch (e: IndexOutOfBoundsException) {
+      throw IOException("Record out of the text", e)
+    } catch (e: IllegalArgumentException) {
+      throw IOException("Record out of the text", e)
+    }
+    content.isUndoEnabled = true
+  }
+
+  private fun readBase(): Base? {
+    if (baseFile.length() < BASE_SIZE) return null
+    return DataInputStream(FileInputStream(baseFile)).use { Base(it.readLong(), it.readLong()) }
+  }
+
+  private fun writeBase(base: Base) {
+    JOURNAL_DIR.mkdirs()
+    baseFile.writeAtomically { channel ->
+      val buffer = ByteBuffer.allocate(BASE_SIZE.toInt())
+      buffer.putLong(base.size).putLong(base.lastModified)
+      buffer.flip()
+      while (buffer.hasRemaining()) channel.write(buffer)
+    }
+  }
+
+  private fun readInto(content: Content, source: File): Content {
+    ChunkedTextReader(source).use { reader ->
+      while (true) {
+        val chunk = reader.readChunk() ?: break
+        val lastLine = content.lineCount - 1
+        content.insert(lastLine, content.getColumnCount(lastLine), chunk)
+      }
+    }
+    return content
+  }
+
+  private fun closeOutput() {
+    try {
+      output?.close()
+    } catch (e: IOException) {
+      log.e("Failed to close journal of ${file.path}", e)
+    }
+    output = null
+  }
+
+  private fun discardFiles() {
+    logFile.delete()
+    snapshotFile.delete()
+    baseFile.delete()
+  }
+
+  /** Size and modification time of the file on disk that journaled edits apply to. */
+  private data class Base(val size: Long, val lastModified: Long) {
+
+    fun matches(file: File): Boolean {
+      return file.length() == size && file.lastModified() == lastModified
+    }
+  }
+
+  companion object {
+    private val log = Logger.newInstance("EditJournal")
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor()
+
+    private val JOURNAL_DIR = File(PathUtils.getInternalAppFilesPath(), "journal")
+
+    const val LOG_SIZE_BUDGET = 1024L * 1024L
+
+    private const val MAGIC = 0x56435350 // "VCSP"
+    private const val VERSION = 1
+    private const val HEADER_SIZE = 24L
+    private const val BASE_SIZE = 16L
+
+    private const val RECORD_INSERT = 1
+    private const val RECORD_DELETE = 2
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.performance
+
+/**
+ * Features a buffer is edited with, from all of them down to plain text. The costly features are
+ * dropped for large buffers only, the others keep following the preferences.
+ */
+enum class PerformanceMode(
+  val highlighting: Boolean,
+  /** Whether word wrap, sticky scroll and ligatures follow the preferences, else they are off. */
+  val layoutFeatures: Boolean,
+  val languageServer: Boolean,
+  val undoDepth: Int,
+) {
+  /** Every feature, as set in the preferences. */
+  FULL(highlighting = true, layoutFeatures = true, languageServer = true, undoDepth = 500),
+
+  /** Highlighted visible lines first within a time budget, without the costly layout features. */
+  REDUCED(highlighting = true, layoutFeatures = false, languageServer = false, undoDepth = 100),
+
+  /** Plain text, for buffers too large for anything else. */
+  MINIMAL(highlighting = false, layoutFeatures = false, languageServer = false, undoDepth = 20),
+}
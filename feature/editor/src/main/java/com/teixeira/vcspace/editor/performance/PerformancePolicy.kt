@@ -0,0 +1,56 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.performance
+
+import com.teixeira.vcspace.editor.highlight.LineLengths
+
+/** Limits from which a buffer gets [PerformanceMode.REDUCED] or [PerformanceMode.MINIMAL]. */
+class PerformanceThresholds(
+  /** Size, in chars, from which features are reduced. */
+  val reducedSize: Long,
+  /** Number of lines from which features are reduced. */
+  val reducedLines: Int,
+  /** Size, in chars, from which the text is plain. */
+  val minimalSize: Long,
+  /** Number of lines from which the text is plain. */
+  val minimalLines: Int,
+  /** Length of the longest line, in chars, from which the text is plain. */
+  val minimalLineLength: Int,
+)
+
+/**
+ * Chooses the [PerformanceMode] of a buffer from its size, its number of lines and its
+ * longest line.
+ */
+class PerformancePolicy(private val thresholds: PerformanceThresholds) {
+
+  /**
+   * Returns the mode of a text with the given [lengths], or with [lengthHint] chars if it
+   * is still loading.
+   */
+  fun modeFor(lengths: LineLengths, lengthHint: Long = 0): PerformanceMode {
+    val size = maxOf(lengths.length.toLong(), lengthHint)
+    return when {
+      size >= thresholds.minimalSize ||
+        lengths.lineCount >= thresholds.minimalLines ||
+        lengths.maxLength >= thresholds.minimalLineLength -> PerformanceMode.MINIMAL
+      size >= thresholds.reducedSize ||
+        lengths.lineCount >= thresholds.reducedLines ||
+        lengths.isMinified -> PerformanceMode.REDUCED
+      else -> PerformanceMode.FULL
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.session
+
+/**
+ * State of an open document in the session. The [edits] only apply to the file of [fileSize] and
+ * [fileModified].
+ */
+data class DocumentState(
+  val path: String,
+  val fileSize: Long,
+  val fileModified: Long,
+  val selectionStartLine: Int,
+  val selectionStartColumn: Int,
+  val selectionEndLine: Int,
+  val selectionEndColumn: Int,
+  val scrollX: Int,
+  val scrollY: Int,
+  val scopeName: String?,
+  val edits: List<RecordedEdit>,
+)
+
+/** An insertion or deletion of [text] recorded by an [EditHistory]. */
+data class RecordedEdit(
+  val isInsert: Boolean,
+  val startLine: Int,
+  val startColumn: Int,
+  val endLine: Int,
+  val endColumn: Int,
+  val text: String,
+)
@@ -0,0 +1,118 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.session
+
+import io.github.rosemoe.sora.event.ContentChangeEvent
+import io.github.rosemoe.sora.text.Content
+
+/** The last [maxEdits] edits of a document, holding at most [maxChars] chars, see [replay]. */
+class EditHistory(
+  private val maxEdits: Int = DEFAULT_MAX_EDITS,
+  private val maxChars: Int = DEFAULT_MAX_CHARS,
+) {
+
+  private val edits = ArrayDeque<RecordedEdit>()
+  private var chars = 0
+
+  /** Must be called from the main thread. */
+  fun record(event: ContentChangeEvent) {
+    val isInsert =
+      when (event.action) {
+        ContentChangeEvent.ACTION_INSERT -> true
+        ContentChangeEvent.ACTION_DELETE -> false
+        else -> return
+      }
+
+    val text = event.changedText
+    if (text.length > maxChars) {
+      // Older edits cannot be undone past an edit that is not kept
+      clear()
+      return
+    }
+
+    add(
+      RecordedEdit(
+        isInsert = isInsert,
+        startLine = event.changeStart.line,
+        startColumn = event.changeStart.column,
+        endLine = event.changeEnd.line,
+        endColumn = event.changeEnd.column,
+        text = text.toString(),
+      )
+    )
+  }
+
+  fun addAll(edits: List<RecordedEdit>) {
+    edits.forEach { add(it) }
+  }
+
+  fun toList(): List<RecordedEdit> {
+    return edits.toList()
+  }
+
+  fun clear() {
+    edits.clear()
+    chars = 0
+  }
+
+  private fun add(edit: RecordedEdit) {
+    edits.addLast(edit)
+    chars += edit.text.length
+    while (edits.size > maxEdits || chars > maxChars) {
+      chars -= edits.removeFirst().text.length
+    }
+  }
+
+  companion object {
+    const val DEFAULT_MAX_EDITS = 200
+    const val DEFAULT_MAX_CHARS = 64 * 1024
+
+    /**
+     * Rebuilds the undo history of [content] from [edits], the last edits that led to its text.
+     * Returns false if they do not match it, the text must then be reloaded.
+     */
+    fun replay(content: Content, edits: List<RecordedEdit>): Boolean {
+      val undoEnabled = content.isUndoEnabled
+      return try {
+        content.isUndoEnabled = false
+        for (i in edits.indices.reversed()) {
+          val edit = edits[i]
+          if (edit.isInsert) {
+            content.delete(edit.startLine, edit.startColumn, edit.endLine, edit.endColumn)
+          } else {
+            content.insert(edit.startLine, edit.startColumn, edit.text)
+          }
+        }
+
+        content.isUndoEnabled = true
+        for (edit in edits) {
+          if (edit.isInsert) {
+            content.insert(edit.startLine, edit.startColumn, edit.text)
+          } else {
+            content.delete(edit.startLine, edit.startColumn, edit.endLine, edit.endColumn)
+          }
+        }
+        true
+      } catch (e: IndexOutOfBoundsException) {
+        false
+      } catch (e: IllegalArgumentException) {
+        false
+      } finally {
+        content.isUndoEnabled = undoEnabled
+      }
+    }
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.session
+
+import com.blankj.utilcode.util.PathUtils
+import com.teixeira.vcspace.editor.io.pathKey
+import com.teixeira.vcspace.editor.io.writeAtomically
+import com.teixeira.vcspace.utils.Logger
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Versioned binary store of the open tabs and their [DocumentState]s: a small index file and one
+ * record file per document, written in the background after [debounceMillis].
+ */
+class SessionStore(
+  private val dir: File = DEFAULT_DIR,
+  private val debounceMillis: Long = DEFAULT_DEBOUNCE,
+) {
+
+  /** The stored session. [selectedIndex] is -1 if no tab is selected. */
+  data class Session(
+    val paths: List<String>,
+    val selectedIndex: Int,
+    val documents: Map<String, DocumentState>,
+  )
+
+  private data class Index(val paths: List<String>, val selectedIndex: Int)
+
+  private var pendingIndex: Index? = null
+  private val pendingDocuments = HashMap<String, DocumentState>()
+  private var scheduledWrite: ScheduledFuture<*>? = null
+
+  // Only accessed from the executor
+  private var writtenIndex: Index? = null
+  private val writtenDocuments = HashMap<String, DocumentState>()
+
+  /** Blocks until pending writes are done. */
+  fun read(): Session {
+    return executor.submit(Callable { readSession() }).get()
+  }
+
+  /** The records of open tabs not among [documents] are kept, those of closed tabs are deleted. */
+  fun update(paths: List<String>, selectedIndex: Int, documents: Collection<DocumentState>) {
+    synchronized(this) {
+      pendingIndex = Index(paths, selectedIndex)
+      documents.forEach { pendingDocuments[it.path] = it }
+
+      scheduledWrite?.cancel(false)
+      scheduledWrite = executor.schedule(::write, debounceMillis, TimeUnit.MILLISECONDS)
+    }
+  }
+
+  fun flush() {
+    synchronized(this) {
+      scheduledWrite?.cancel(false)
+      scheduledWrite = null
+    }
+    executor.execute(::write)
+  }
+
+  private fun write() {
+    val (index, documents) =
+      synchronized(this) {
+        val index = pendingIndex ?: return
+        val documents = pendingDocuments.values.toList()
+        pendingIndex = null
+        pendingDocuments.clear()
+        scheduledWrite = null
+        index to documents
+      }
+
+    try {
+      dir.mkdirs()
+      val openPaths = index.paths.toHashSet()
+      for (document in documents) {
+        if (document.path !in openPaths || writtenDocuments[document.path] == document) continue
+
+        writeFile(recordFile(document.path)) { writeDocument(it, document) }
+        writtenDocuments[document.path] = document
+      }
+
+      if (index != writtenIndex) {
+        writeFile(File(dir, INDEX_FILE_NAME)) { output ->
+          output.writeInt(index.selectedIndex)
+          output.writeInt(index.paths.size)
+          index.paths.forEach { output.writeString(it) }
+        }
+        writtenIndex = index
+        deleteClosedRecords(openPaths)
+      }
+    } catch (e: IOException) {
+      log.e("Failed to write session", e)
+    }
+  }
+
+  private fun deleteClosedRecords(openPaths: Set<String>) {
+    writtenDocuments.keys.retainAll(openPaths)
+    val openKeys = openPaths.mapTo(HashSet()) { pathKey(it) }
+    dir.listFiles { file -> file.name.endsWith(RECORD_EXTENSION) }?.forEach { file ->
+      if (file.name.removeSuffix(RECORD_EXTENSION) !in openKeys) file.delete()
+    }
+  }
+
+  private fun readSession(): Session {
+    val indexFile = File(dir, INDEX_FILE_NAME)
+    if (!indexFile.exists()) return EMPTY_SESSION
+
+    val index =
+      try {
+        readFile(indexFile) { input ->
+          val selectedIndex = input.readInt()
+          val paths = List(input.readCount()) { input.readString() }
+          Index(paths, selectedIndex)
+        }
+      } catch (e: Exception) {
+        log.e("Failed to read session", e)
+        indexFile.delete()
+        null
+      }
+    if (index == null) return EMPTY_SESSION
+
+    val documents = HashMap<String, DocumentState>()
+    for (path in index.paths) {
+      val file = recordFile(path)
+      if (!file.exists()) continue
+
+      try {
+        val document = readFile(file) { readDocument(it) }
+        if (document?.path == path) documents[path] = document
+      } catch (e: Exception) {
+        log.e("Failed to read session record of $path", e)
+        file.delete()
+      }
+    }
+
+    writtenIndex = index
+    writtenDocuments.putAll(documents)
+    return Session(index.paths, index.selectedIndex, documents)
+  }
+
+  private fun writeDocument(output: DataOutputStream, document: DocumentState) {
+    output.writeString(document.path)
+    output.writeLong(document.fileSize)
+    output.writeLong(document.fileModified)
+    output.writeInt(document.selectionStartLine)
+    output.writeInt(document.selectionStartColumn)
+    output.writeInt(document.selectionEndLine)
+    output.writeInt(document.selectionEndColumn)
+    output.writeInt(document.scrollX)
+    output.writeInt(document.scrollY)
+    output.writeBoolean(document.scopeName != null)
+    document.scopeName?.let { output.writeString(it) }
+
+    output.writeInt(document.edits.size)
+    for (edit in document.edits) {
+      output.writeBoolean(edit.isInsert)
+      output.writeInt(edit.startLine)
+      output.writeInt(edit.startColumn)
+      output.writeInt(edit.endLine)
+      output.writeInt(edit.endColumn)
+      output.writeString(edit.text)
+    }
+  }
+
+  private fun readDocument(input: DataInputStream): DocumentState {
+    val path = input.readString()
+    val fileSize = input.readLong()
+    val fileModified = input.readLong()
+    val selectionStartLine = input.readInt()
+    val selectionStartColumn = input.readInt()
+    val selectionEndLine = input.readInt()
+    val selectionEndColumn = input.readInt()
+    val scrollX = input.readInt()
+    val scrollY = input.readInt()
+    val scopeName = if (input.readBoolean()) input.readString() else null
+
+    val edits =
+      List(input.readCount()) {
+        RecordedEdit(
+          isInsert = input.readBoolean(),
+          startLine = input.readInt(),
+          startColumn = input.readInt(),
+          endLine = input.readInt(),
+          endColumn = input.readInt(),
+          text = input.readString(),
+        )
+      }
+
+    return DocumentState(
+      path = path,
+      fileSize = fileSize,
+      fileModified = fileModified,
+      selectionStartLine = selectionStartLine,
+      selectionStartColumn = selectionStartColumn,
+      selectionEndLine = selectionEndLine,
+      selectionEndColumn = selectionEndColumn,
+      scrollX = scrollX,
+      scrollY = scrollY,
+      scopeName = scopeName,
+      edits = edits,
+    )
+  }
+
+  private fun writeFile(file: File, write: (DataOutputStream) -> Unit) {
+    val bytes = ByteArrayOutputStream()
+    DataOutputStream(bytes).use { output ->
+      output.writeInt(MAGIC)
+      output.writeInt(VERSION)
+      write(output)
+    }
+
+    file.writeAtomically { channel ->
+      val buffer = ByteBuffer.wrap(bytes.toByteArray())
+      while (buffer.hasRemaining()) channel.write(buffer)
+    }
+  }
+
+  /** Reads [file], or returns `null` if it was written by another version of the store. */
+  private fun <T> readFile(file: File, read: (DataInputStream) -> T): T? {
+    DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) return null
+      return read(input)
+    }
+  }
+
+  private fun recordFile(path: String): File {
+    return File(dir, pathKey(path) + RECORD_EXTENSION)
+  }
+
+  private fun DataOutputStream.writeString(value: String) {
+    val bytes = value.toByteArray(Charsets.UTF_8)
+    writeInt(bytes.size)
+    write(bytes)
+  }
+
+  private fun DataInputStream.readString(): String {
+    val bytes = ByteArray(readCount())
+    readFully(bytes)
+    return String(bytes, Charsets.UTF_8)
+  }
+
+  private fun DataInputStream.readCount(): Int {
+    val count = readInt()
+    if (count < 0 || count > available()) throw IOException("Invalid count: $count")
+    return count
+  }
+
+  companion object {
+    private val log = Logger.newInstance("SessionStore")
+    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+
+    val DEFAULT_DIR = File(PathUtils.getExternalAppFilesPath(), "settings/session")
+    const val DEFAULT_DEBOUNCE = 1000L
+
+    private val EMPTY_SESSION = Session(emptyList(), -1, emptyMap())
+
+    private const val MAGIC = 0x56435353 // "VCSS"
+    private const val VERSION = 1
+
+    private const val INDEX_FILE_NAME = "index"
+    private const val RECORD_EXTENSION = ".doc"
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.treesitter
+
+import com.itsaky.androidide.treesitter.TSLanguage
+import com.itsaky.androidide.treesitter.c.TSLanguageC
+import com.itsaky.androidide.treesitter.cpp.TSLanguageCpp
+import com.itsaky.androidide.treesitter.java.TSLanguageJava
+import com.itsaky.androidide.treesitter.json.TSLanguageJson
+import com.itsaky.androidide.treesitter.kotlin.TSLanguageKotlin
+import com.itsaky.androidide.treesitter.python.TSLanguagePython
+import com.teixeira.vcspace.editor.highlight.TextMateStyles
+import com.teixeira.vcspace.utils.Logger
+import io.github.rosemoe.sora.editor.ts.TsLanguage
+import io.github.rosemoe.sora.editor.ts.TsLanguageSpec
+import io.github.rosemoe.sora.editor.ts.TsThemeBuilder
+import io.github.rosemoe.sora.lang.Language
+import io.github.rosemoe.sora.langs.textmate.registry.FileProviderRegistry
+import io.github.rosemoe.sora.langs.textmate.registry.GrammarRegistry
+import io.github.rosemoe.sora.langs.textmate.registry.model.DefaultGrammarDefinition
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import org.eclipse.tm4e.core.grammar.IGrammar
+import org.eclipse.tm4e.core.registry.IGrammarSource
+
+/**
+ * Tree-sitter languages, used instead of TextMate for the grammars they cover. Captures are
+ * colored with the current TextMate theme through the scopes of [captureScopes].
+ */
+object TreeSitterLanguages {
+
+  private const val QUERIES_PATH = "editor/treesitter"
+  private const val CAPTURES_SCOPE_NAME = "source.vcspace.captures"
+
+  private val log = Logger.newInstance("TreeSitterLanguages")
+
+  /** Tree-sitter grammars, by the TextMate scope name of the grammar they replace. */
+  private val grammars =
+    mapOf<String, Pair<String, () -> TSLanguage>>(
+      "source.c" to ("c" to { TSLanguageC.getInstance() }),
+      "source.cpp" to ("cpp" to { TSLanguageCpp.getInstance() }),
+      "source.java" to ("java" to { TSLanguageJava.getInstance() }),
+      "source.json" to ("json" to { TSLanguageJson.getInstance() }),
+      "source.kotlin" to ("kotlin" to { TSLanguageKotlin.getInstance() }),
+      "source.python" to ("python" to { TSLanguagePython.getInstance() }),
+    )
+
+  /** TextMate scope of each capture of the queries, the most specific captures first. */
+  private val captureScopes =
+    linkedMapOf(
+      "comment" to "comment",
+      "string.escape" to "constant.character.escape",
+      "string" to "string",
+      "number" to "constant.numeric",
+      "boolean" to "constant.language",
+      "constant.builtin" to "constant.language",
+      "constant" to "variable.other.constant",
+      "keyword.operator" to "keyword.operator",
+      "keyword" to "keyword",
+      "operator" to "keyword.operator",
+      "type.builtin" to "storage.type",
+      "type" to "entity.name.type",
+      "attribute" to "storage.type.annotation",
+      "function.call" to "entity.name.function",
+      "function" to "entity.name.function",
+      "variable.builtin" to "variable.language",
+      "property" to "variable.other.property",
+      "label" to "entity.name.label",
+      "preproc" to "keyword.control.directive",
+    )
+
+  /**
+   * Grammar matching the line `i` with the i-th scope of [captureScopes], so the theme styles the
+   * scopes through the public tokenizer API.
+   */
+  private val capturesGrammar: IGrammar by lazy {
+    val patterns =
+      captureScopes.values.withIndex().joinToString(",") { (i, scope) ->
+        """{"match":"^$i$","name":"$scope"}"""
+      }
+    val json = """{"scopeName":"$CAPTURES_SCOPE_NAME","patterns":[$patterns]}"""
+    val source =
+      IGrammarSource.fromInputStream(json.byteInputStream(), "captures.json", Charsets.UTF_8)
+    val registry = GrammarRegistry.getInstance()
+    registry.findGrammar(CAPTURES_SCOPE_NAME)
+      ?: registry.loadGrammar(
+        DefaultGrammarDefinition.withGrammarSource(source, "captures", CAPTURES_SCOPE_NAME)
+      )
+  }
+
+  private val queries = ConcurrentHashMap<String, QuerySources>()
+
+  private class QuerySources(val highlights: String, val blocks: String, val brackets: String)
+
+  fun isSupported(scopeName: String): Boolean = scopeName in grammars
+
+  /**
+   * Creates the tree-sitter language replacing the grammar of [scopeName], `null` if there
+   * is none or if it fails to load. Must be called from a background thread.
+   */
+  fun create(scopeName: String, useTab: Boolean): Language? {
+    val (name, grammar) = grammars[scopeName] ?: return null
+    return try {
+      val sources = queries.getOrPut(name) { readQueries(name) }
+      val spec =
+        TsLanguageSpec(
+          language = grammar(),
+          highlightScmSource = sources.highlights,
+          codeBlocksScmSource = sources.blocks,
+          bracketsScmSource = sources.brackets,
+        )
+      TsLanguage(spec, useTab) { applyTextMateTheme() }
+    } catch (e: IOException) {
+      log.e("Failed to read the tree-sitter queries of $name", e)
+      null
+    } catch (e: RuntimeException) {
+      // The queries do not match the grammar, e.g. after an update of it
+      log.e("Failed to create the tree-sitter language $name", e)
+      null
+    }
+  }
+
+  private fun readQueries(name: String): QuerySources {
+    return QuerySources(
+      highlights = readQuery(name, "highlights.scm"),
+      blocks = readQuery(name, "blocks.scm"),
+      brackets = readQuery(name, "brackets.scm"),
+    )
+  }
+
+  private fun readQuery(name: String, fileName: String): String {
+    val path = "$QUERIES_PATH/$name/$fileName"
+    val input =
+      FileProviderRegistry.getInstance().tryGetInputStream(path)
+        ?: throw IOException("Missing query: $path")
+    return input.bufferedReader().use { it.readText() }
+  }
+
+  private fun TsThemeBuilder.applyTextMateTheme() {
+    captureScopes.keys.forEachIndexed { i, capture -> styleOf(i) applyTo capture }
+  }
+
+  /** Style the current theme gives the [index]-th scope of [captureScopes]. */
+  private fun styleOf(index: Int): Long {
+    val tokens = capturesGrammar.tokenizeLine2("$index").tokens
+    return TextMateStyles.styleOf(tokens[1])
+  }
+}
+
+/** Whether this is a tree-sitter language, whose colors and tab setting are set on creation. */
+val Language.isTreeSitter: Boolean
+  get() = this is TsLanguage
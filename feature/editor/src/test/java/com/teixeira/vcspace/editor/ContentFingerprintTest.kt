@@ -0,0 +1,72 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor
+
+import io.github.rosemoe.sora.event.ContentChangeEvent
+import io.github.rosemoe.sora.text.Content
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Test
+
+class ContentFingerprintTest {
+
+  private val content = Content((0 until 100).joinToString("\n") { "line $it" })
+  private val fingerprint = ContentFingerprint().apply { reset(content) }
+  private val saved = fingerprint.value
+
+  /** Replaces the text of [line], delivering the changes like the editor does. */
+  private fun replaceLine(line: Int, text: String) {
+    content.delete(line, 0, line, content.getColumnCount(line))
+    fingerprint.onLinesChanged(content, ContentChangeEvent.ACTION_DELETE, line, line)
+    content.insert(line, 0, text)
+    fingerprint.onLinesChanged(content, ContentChangeEvent.ACTION_INSERT, line, line)
+  }
+
+  @Test
+  fun editOfAnEarlyLineMakesTheTextModified() {
+    replaceLine(10, "edited")
+    assertNotEquals(saved, fingerprint.value)
+  }
+
+  @Test
+  fun editOfEveryLineMakesTheTextModified() {
+    for (line in 0 until content.lineCount) {
+      val text = content.getLineString(line)
+      replaceLine(line, "edited")
+      assertNotEquals("line $line", saved, fingerprint.value)
+      replaceLine(line, text)
+    }
+  }
+
+  @Test
+  fun revertedEditMakesTheTextUnmodified() {
+    replaceLine(10, "edited")
+    replaceLine(10, "line 10")
+    assertEquals(saved, fingerprint.value)
+  }
+
+  @Test
+  fun splitAndJoinedLinesMatchAFreshFingerprint() {
+    content.insert(20, 2, "\nnew\n")
+    fingerprint.onLinesChanged(content, ContentChangeEvent.ACTION_INSERT, 20, 22)
+    assertEquals(ContentFingerprint().apply { reset(content) }.value, fingerprint.value)
+    assertNotEquals(saved, fingerprint.value)
+
+    content.delete(20, 2, 22, 0)
+    fingerprint.onLinesChanged(content, ContentChangeEvent.ACTION_DELETE, 20, 22)
+    assertEquals(saved, fingerprint.value)
+  }
+}
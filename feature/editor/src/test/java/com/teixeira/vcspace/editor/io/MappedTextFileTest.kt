@@ -0,0 +1,76 @@
+/*
+ * This file is part of Visual Code Space.
+ *
+ * Visual Code Space is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Visual Code Space is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with Visual Code Space.
+ * If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.teixeira.vcspace.editor.io
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class MappedTextFileTest {
+
+  private val source = File.createTempFile("mapped", ".txt")
+  private val target = File.createTempFile("spliced", ".txt")
+
+  @After
+  fun deleteFiles() {
+    source.delete()
+    target.delete()
+  }
+
+  /** Replaces [oldLines] lines from [startLine] by [newLines] lines and checks the new index. */
+  private fun checkSplice(startLine: Int, oldLines: Int, newLines: Int) {
+    source.writeText((0 until 1000).joinToString("\n") { "line $it" } + "\n")
+    val replacement = (0 until newLines).joinToString("\n") { "new ${"x".repeat(it)}" }
+
+    MappedTextFile(source).use { previous ->
+      previous.buildIndex()
+      val (start, end) = previous.lineRange(startLine, oldLines)
+      RandomAccessFile(target, "rw").use {
+        it.setLength(0)
+        previous.spliceTo(it.channel, start, end, ByteBuffer.wrap(replacement.toByteArray()))
+      }
+
+      MappedTextFile(target).use { spliced ->
+        spliced.indexAfterSplice(previous, startLine, oldLines, newLines)
+        MappedTextFile(target).use { scanned ->
+          scanned.buildIndex()
+          assertEquals(scanned.lineCount, spliced.lineCount)
+          for (line in 0..scanned.lineCount) {
+            assertEquals("line $line", scanned.lineStartOffset(line), spliced.lineStartOffset(line))
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  fun spliceWithMoreLinesKeepsTheIndex() {
+    checkSplice(startLine = 100, oldLines = 50, newLines = 130)
+  }
+
+  @Test
+  fun spliceWithFewerLinesKeepsTheIndex() {
+    checkSplice(startLine = 130, oldLines = 200, newLines = 3)
+  }
+
+  @Test
+  fun spliceAtTheEndKeepsTheIndex() {
+    checkSplice(startLine = 900, oldLines = 101, newLines = 70)
+  }
+}
@@ -25,6 +25,15 @@ const val PREF_EDITOR_USETAB_KEY = "pref_editor_usetab_key"
 const val PREF_EDITOR_DELETELINEONBACKSPACE_KEY = "pref_editor_deletelineonbackspace"
 const val PREF_EDITOR_DELETETABONBACKSPACE_KEY = "pref_editor_deletetabonbackspace"
 const val PREF_EDITOR_TABS_AUTOSAVE = "pref_editor_tabs_autosave"
+const val PREF_EDITOR_LARGE_FILE_THRESHOLD_KEY = "pref_editor_large_file_threshold_key"
+const val PREF_EDITOR_TABS_MAX_LIVE_KEY = "pref_editor_tabs_max_live_key"
+const val PREF_EDITOR_TABS_LIVE_TEXT_BUDGET_KEY = "pref_editor_tabs_live_text_budget_key"
+const val PREF_EDITOR_TREE_SITTER_KEY = "pref_editor_tree_sitter_key"
+const val PREF_EDITOR_REDUCED_MODE_SIZE_KEY = "pref_editor_reduced_mode_size_key"
+const val PREF_EDITOR_REDUCED_MODE_LINES_KEY = "pref_editor_reduced_mode_lines_key"
+const val PREF_EDITOR_MINIMAL_MODE_SIZE_KEY = "pref_editor_minimal_mode_size_key"
+const val PREF_EDITOR_MINIMAL_MODE_LINES_KEY = "pref_editor_minimal_mode_lines_key"
+const val PREF_EDITOR_MINIMAL_MODE_LINE_LENGTH_KEY = "pref_editor_minimal_mode_line_length_key"
 
 // File
 const val PREF_FILE_SHOWHIDDENFILES_KEY = "pref_file_showhiddenfiles_key"
@@ -110,6 +119,42 @@ val editorDeleteTabOnBackspace: Boolean
 val editorTabsAutosave: Boolean
   get() = defaultPrefs.getBoolean(PREF_EDITOR_TABS_AUTOSAVE, false)
 
+/** Files larger than this size, in bytes, are opened in the read-only large file viewer. */
+val editorLargeFileThreshold: Long
+  get() = defaultPrefs.getInt(PREF_EDITOR_LARGE_FILE_THRESHOLD_KEY, 32) * 1024L * 1024L
+
+/** Maximum number of tabs whose editor is kept alive, the others are hibernated. */
+val editorTabsMaxLive: Int
+  get() = defaultPrefs.getInt(PREF_EDITOR_TABS_MAX_LIVE_KEY, 5)
+
+/** Maximum size, in chars, of the texts of the tabs whose editor is kept alive. */
+val editorTabsLiveTextBudget: Long
+  get() = defaultPrefs.getInt(PREF_EDITOR_TABS_LIVE_TEXT_BUDGET_KEY, 4) * 1024L * 1024L
+
+/** Whether languages with a tree-sitter grammar are highlighted by it rather than by TextMate. */
+val editorTreeSitter: Boolean
+  get() = defaultPrefs.getBoolean(PREF_EDITOR_TREE_SITTER_KEY, true)
+
+/** Size, in chars, from which a buffer is edited with reduced features. */
+val editorReducedModeSize: Long
+  get() = defaultPrefs.getInt(PREF_EDITOR_REDUCED_MODE_SIZE_KEY, 4) * 1024L * 1024L
+
+/** Number of lines from which a buffer is edited with reduced features. */
+val editorReducedModeLines: Int
+  get() = defaultPrefs.getInt(PREF_EDITOR_REDUCED_MODE_LINES_KEY, 100_000)
+
+/** Size, in chars, from which a buffer is edited as plain text. */
+val editorMinimalModeSize: Long
+  get() = defaultPrefs.getInt(PREF_EDITOR_MINIMAL_MODE_SIZE_KEY, 16) * 1024L * 1024L
+
+/** Number of lines from which a buffer is edited as plain text. */
+val editorMinimalModeLines: Int
+  get() = defaultPrefs.getInt(PREF_EDITOR_MINIMAL_MODE_LINES_KEY, 500_000)
+
+/** Length of the longest line, in chars, from which a buffer is edited as plain text. */
+val editorMinimalModeLineLength: Int
+  get() = defaultPrefs.getInt(PREF_EDITOR_MINIMAL_MODE_LINE_LENGTH_KEY, 1_000_000)
+
 // File
 val fileShowhiddenfiles: Boolean
   get() = defaultPrefs.getBoolean(PREF_FILE_SHOWHIDDENFILES_KEY, true)